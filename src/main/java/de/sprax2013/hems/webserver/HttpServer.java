@@ -3,7 +3,9 @@ package de.sprax2013.hems.webserver;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -11,6 +13,7 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
@@ -25,6 +28,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class HttpServer implements Closeable {
+    public static final int DEFAULT_READ_TIMEOUT = 10_000;
+
     private final Map<String, String> defaultHeaders = new LinkedHashMap<>();
 
     private final List<HttpRequestListener> requestPreListeners = new ArrayList<>();
@@ -35,6 +40,8 @@ public class HttpServer implements Closeable {
 
     private final ExecutorService pool;
 
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+
     public HttpServer(int port) throws IOException {
         this.defaultHeaders.put("connection", "close");
         this.defaultHeaders.put("referrer-policy", "strict-origin-when-cross-origin");
@@ -69,13 +76,17 @@ public class HttpServer implements Closeable {
             pool.execute(() -> {
                 while (!srv.isClosed()) {
                     try (Socket client = srv.accept();
-                         InputStream in = client.getInputStream();
+                         InputStream in = new BufferedInputStream(client.getInputStream());
                          OutputStream out = client.getOutputStream()) {
+                        client.setSoTimeout(readTimeout);
+
                         HttpResponse res = new HttpResponse(defaultHeaders);
 
                         try {
                             HttpRequest req = parseRequest(client, in);
 
+                            if (req == null) continue;  // Client closed the connection without sending anything
+
                             for (HttpRequestListener handler : requestPreListeners) {
                                 handler.onRequest(req, res);
                             }
@@ -124,6 +135,22 @@ public class HttpServer implements Closeable {
         return this.srv.getLocalPort();
     }
 
+    public int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    /**
+     * @param readTimeout The time in milliseconds to wait for the client to send more data,
+     *                    before answering with <em>408 Request Time-out</em>
+     */
+    public void setReadTimeout(int readTimeout) {
+        if (readTimeout <= 0) {
+            throw new IllegalArgumentException("readTimeout has to be greater than 0");
+        }
+
+        this.readTimeout = readTimeout;
+    }
+
     public void addRequestPreListener(HttpRequestListener listener) {
         this.requestPreListeners.add(listener);
     }
@@ -143,7 +170,7 @@ public class HttpServer implements Closeable {
     }
 
     // TODO: Put this inside HttpRequest as #parse(Socket, InputStream), so we have a request object for logging
-    private HttpRequest parseRequest(@NotNull Socket client, @NotNull InputStream in) throws IOException, HttpRequestException {
+    private @Nullable HttpRequest parseRequest(@NotNull Socket client, @NotNull InputStream in) throws IOException, HttpRequestException {
         String reqMethod = null;
         String reqPath = null;
         String reqRawPath = null;
@@ -154,6 +181,16 @@ public class HttpServer implements Closeable {
 
         String lastHeaderKey = null;
         while (true) {
+            if (reqMethod == null) {
+                in.mark(1);
+
+                if (readByte(in) == -1) {
+                    return null;
+                }
+
+                in.reset();
+            }
+
             String line = new String(readHeaderLine(in));
 
             // Parse Method, Path and HTTP-Version
@@ -218,6 +255,8 @@ public class HttpServer implements Closeable {
                 reqBody = in.readNBytes(Integer.parseInt(contentLength));
             } catch (NumberFormatException ignore) {
                 throw new HttpRequestException(HttpStatusCode.BAD_REQUEST); // Invalid value for Content-Length
+            } catch (SocketTimeoutException ignore) {
+                throw new HttpRequestException(HttpStatusCode.REQUEST_TIME_OUT);
             }
         }
 
@@ -261,27 +300,41 @@ public class HttpServer implements Closeable {
         int i = 0;
 
         while (true) {
-            if (in.available() > 0) {
-                if (i + 1 >= buffer.length) {
-                    int newLength = buffer.length * 2;
+            int b = readByte(in);
 
-                    if (newLength > 4096) throw new HttpRequestException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
+            if (b == -1) {
+                throw new EOFException("Connection closed while reading a header line");
+            }
 
-                    buffer = Arrays.copyOf(buffer, newLength);
-                }
+            if (i + 1 >= buffer.length) {
+                int newLength = buffer.length * 2;
 
-                byte b = (byte) in.read();
-                buffer[i++] = b;
+                if (newLength > 4096) throw new HttpRequestException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
 
-                if (b == 10 && buffer[i - 2] == 13) {
-                    break;
-                }
+                buffer = Arrays.copyOf(buffer, newLength);
+            }
+
+            buffer[i++] = (byte) b;
+
+            if (b == 10 && i > 1 && buffer[i - 2] == 13) {
+                break;
             }
         }
 
         return Arrays.copyOf(buffer, i - 1);    // Remove "\r\n" and trailing nulls
     }
 
+    /**
+     * Blocks until a byte is available, the stream ended or the socket's read timeout is reached
+     */
+    private int readByte(@NotNull InputStream in) throws IOException, HttpRequestException {
+        try {
+            return in.read();
+        } catch (SocketTimeoutException ignore) {
+            throw new HttpRequestException(HttpStatusCode.REQUEST_TIME_OUT);
+        }
+    }
+
     private void writeLineCRLF(@NotNull OutputStream out, @Nullable String str) throws IOException {
         if (str != null) {
             out.write(str.getBytes());
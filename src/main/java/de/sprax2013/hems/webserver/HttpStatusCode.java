@@ -1,5 +1,7 @@
 package de.sprax2013.hems.webserver;
 
+import java.nio.charset.StandardCharsets;
+
 public enum HttpStatusCode {
     CONTINUE(100, "Continue"),
     SWITCHING_PROTOCOLS(101, "Switching Protocols"),
@@ -46,12 +48,31 @@ public enum HttpStatusCode {
     GATEWAY_TIME_OUT(504, "Gateway Time-out"),
     HTTP_VERSION_NOT_SUPPORTED(505, "HTTP Version not supported");
 
+    private static final HttpStatusCode[] BY_CODE = new HttpStatusCode[600];
+
+    static {
+        for (HttpStatusCode status : values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
+
     public final int code;
     public final String name;
 
+    private final byte[] statusLine;
+
     HttpStatusCode(int code, String name) {
         this.code = code;
         this.name = name;
+
+        this.statusLine = ("HTTP/1.1 " + code + " " + name + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return The encoded status line including CRLF (shared - must not be modified)
+     */
+    public byte[] getStatusLine() {
+        return this.statusLine;
     }
 
     public boolean isOk() {
@@ -67,10 +88,12 @@ public enum HttpStatusCode {
     }
 
     public static HttpStatusCode getByCode(int statusCode) {
-        for (HttpStatusCode status : values()) {
-            if (status.code == statusCode) return status;
+        HttpStatusCode status = statusCode >= 0 && statusCode < BY_CODE.length ? BY_CODE[statusCode] : null;
+
+        if (status == null) {
+            throw new IllegalArgumentException("A StatusCode with the given code is not known");
         }
 
-        throw new IllegalArgumentException("A StatusCode with the given name is not known");
+        return status;
     }
 }
\ No newline at end of file
@@ -15,7 +15,7 @@ public class Main {
         File tmpDir = initWorkingDir();
         System.out.println("Using '" + tmpDir.getAbsolutePath() + "' as working directory");
 
-        HttpServer srv = new HttpServer(8080);
+        HttpServer srv = new HttpServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
 
         srv.addRequestHandler("/home", new FileIndexRoute(new File(System.getProperty("user.dir"))));
         srv.addRequestHandler("/debug", new DebugRoute());
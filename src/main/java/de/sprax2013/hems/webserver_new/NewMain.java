@@ -3,6 +3,9 @@ package de.sprax2013.hems.webserver_new;
 import de.sprax2013.hems.webserver.HttpStatusCode;
 import de.sprax2013.hems.webserver.Main;
 import de.sprax2013.hems.webserver_new.http.HemsWebServer;
+import de.sprax2013.hems.webserver_new.http.HttpProtocolException;
+import de.sprax2013.hems.webserver_new.http.MultipartReader;
+import de.sprax2013.hems.webserver_new.routes.CompressedVariantCache;
 import de.sprax2013.hems.webserver_new.routes.DebugRoute;
 import de.sprax2013.hems.webserver_new.routes.FileIndexRoute;
 import de.sprax2013.hems.webserver_new.routes.ServingRoute;
@@ -11,6 +14,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.regex.Pattern;
@@ -22,8 +26,6 @@ public class NewMain {
 
         HemsWebServer srv = new HemsWebServer(true);
 
-        // TODO: Add support for '/name/[:fieldName[?]]' path syntax
-
         srv
                 .get("/debug", new DebugRoute())
                 .get("/home", new FileIndexRoute(new File(System.getProperty("user.dir"))))
@@ -34,6 +36,15 @@ public class NewMain {
                     return true;
                 })
 
+                .get("/hello/:name?", (req, res) -> {
+                    String name = req.getParam("name");
+
+                    res.setStatus(HttpStatusCode.OK)
+                            .setBody("Hello " + (name != null ? name : "World") + "!");
+
+                    return true;
+                })
+
                 .get(Pattern.compile("/page[0-9]+", Pattern.CASE_INSENSITIVE), (req, res) -> {
                     res.setStatus(HttpStatusCode.OK)
                             .setBody("You found " + req.getFullPath());
@@ -42,12 +53,46 @@ public class NewMain {
                 })
 
                 .post("/form.html", (req, res) -> {
+                    String contentType = req.getHeader("Content-Type");
+
+                    if (contentType == null || !contentType.startsWith("multipart/form-data")) {
+                        res.setStatus(HttpStatusCode.OK)
+                                .setBody(new String(req.getBody(), StandardCharsets.UTF_8));
+
+                        return true;
+                    }
+
+                    StringBuilder body = new StringBuilder();
+
+                    try {
+                        MultipartReader reader = new MultipartReader(req);
+                        MultipartReader.Part part;
+
+                        while ((part = reader.nextPart()) != null) {
+                            MultipartReader.SpooledPart spooledPart = part.spool(64 * 1024);
+
+                            body.append(part.getName())
+                                    .append(": ")
+                                    .append(part.getFileName() != null ?
+                                            part.getFileName() + " (" + spooledPart.getSize() + " bytes)" :
+                                            spooledPart.getString())
+                                    .append('\n');
+                        }
+                    } catch (HttpProtocolException ex) {
+                        res.send(ex.getHttpCode());
+
+                        return true;
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+
                     res.setStatus(HttpStatusCode.OK)
-                            .setBody(new String(req.getBody(), StandardCharsets.UTF_8));
+                            .setBody(body.toString());
 
                     return true;
                 })
-                .get("/", new ServingRoute(new File(tmpDir, "www")));
+                .get("/", new ServingRoute(new File(tmpDir, "www"))
+                        .setCompressionCache(new CompressedVariantCache(16 * 1024 * 1024)));
 
         srv.listen(8080);
         System.out.println("HTTP-Server running at port " + srv.getPort());
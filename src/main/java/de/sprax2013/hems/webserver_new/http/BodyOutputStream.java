@@ -0,0 +1,151 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stream handed to a {@link BodyWriter}.
+ * <br><br>
+ * Bodies of unknown length are sent using {@code Transfer-Encoding: chunked}, one chunk per filled buffer.
+ * Bodies of known length are sent as is, but writing more or less data than announced fails.
+ * Closing this stream finishes the body, without closing the connection.
+ */
+class BodyOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    /**
+     * Space reserved in front of the buffered data for the chunk size line (at most 4 hex digits and CRLF)
+     */
+    private static final int CHUNK_HEADER_SIZE = 6;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final OutputStream out;
+    private final long length;
+
+    /**
+     * Buffered data starts at {@link #CHUNK_HEADER_SIZE} and is followed by enough space for the chunk's CRLF,
+     * so a buffered chunk is sent using a single write
+     */
+    private final byte[] buffer = new byte[CHUNK_HEADER_SIZE + BUFFER_SIZE + CRLF.length];
+    private int count;
+
+    private long written;
+    private boolean closed;
+
+    /**
+     * @param out    The connection's stream
+     * @param length The announced length of the body or {@code -1} if chunked encoding should be used
+     */
+    BodyOutputStream(@NotNull OutputStream out, long length) {
+        this.out = out;
+        this.length = length;
+    }
+
+    /**
+     * @return The number of body bytes written (excluding chunk framing)
+     */
+    long getWritten() {
+        return this.written;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen(1);
+
+        if (this.count == BUFFER_SIZE) {
+            writeBuffer();
+        }
+
+        this.buffer[CHUNK_HEADER_SIZE + this.count++] = (byte) b;
+        ++this.written;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        ensureOpen(len);
+
+        if (len >= BUFFER_SIZE) {
+            // Don't copy large writes into the buffer
+            writeBuffer();
+            writeChunk(b, off, len);
+        } else if (len > 0) {
+            if (len > BUFFER_SIZE - this.count) {
+                writeBuffer();
+            }
+
+            System.arraycopy(b, off, this.buffer, CHUNK_HEADER_SIZE + this.count, len);
+            this.count += len;
+        }
+
+        this.written += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (this.closed) return;
+
+        writeBuffer();
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) return;
+
+        writeBuffer();
+        this.closed = true;
+
+        if (this.length == -1) {
+            this.out.write(LAST_CHUNK);
+        } else if (this.written != this.length) {
+            throw new IOException("Body is shorter than the announced Content-Length (" + this.written + " of " + this.length + " bytes)");
+        }
+
+        this.out.flush();
+    }
+
+    private void ensureOpen(int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Body has already been finished");
+        }
+
+        if (this.length != -1 && this.written + len > this.length) {
+            throw new IOException("Body exceeds the announced Content-Length of " + this.length + " bytes");
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (this.count == 0) return;
+
+        if (this.length == -1) {
+            byte[] chunkHeader = (Integer.toHexString(this.count) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            int start = CHUNK_HEADER_SIZE - chunkHeader.length;
+
+            System.arraycopy(chunkHeader, 0, this.buffer, start, chunkHeader.length);
+            System.arraycopy(CRLF, 0, this.buffer, CHUNK_HEADER_SIZE + this.count, CRLF.length);
+
+            this.out.write(this.buffer, start, CHUNK_HEADER_SIZE + this.count + CRLF.length - start);
+        } else {
+            this.out.write(this.buffer, CHUNK_HEADER_SIZE, this.count);
+        }
+
+        this.count = 0;
+    }
+
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        if (this.length == -1) {
+            this.out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            this.out.write(b, off, len);
+            this.out.write(CRLF);
+        } else {
+            this.out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces a response body while it is being sent (see {@link WebResponse#setBody(BodyWriter)}).
+ */
+public interface BodyWriter {
+    /**
+     * Called after the response head has been sent.
+     * Writes block while the client does not keep up with receiving the body.
+     *
+     * @param out The stream to write the body to, closing it is not required
+     */
+    void writeTo(@NotNull OutputStream out) throws IOException;
+}
@@ -0,0 +1,82 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Streams multiple ranges of a file as {@code multipart/byteranges} body (RFC 7233, appendix A),
+ * without reading the ranges into memory.
+ * <br><br>
+ * Use {@link WebResponse#setBody(BodyWriter, long)} with {@link #getLength()} and set {@link #getContentType()}.
+ */
+public final class ByteRangesWriter implements BodyWriter {
+    private final Path file;
+    private final List<HttpRange> ranges;
+    private final String boundary;
+
+    private final byte[][] partHeads;
+    private final byte[] end;
+    private final long length;
+
+    /**
+     * @param file        The file to read the ranges from
+     * @param ranges      The ranges to send (see {@link HttpRange#parse(String, long)})
+     * @param size        The size of the whole file
+     * @param contentType The type of the file or {@code null} if it is unknown
+     */
+    public ByteRangesWriter(@NotNull Path file, @NotNull List<HttpRange> ranges, long size, @Nullable String contentType) {
+        this.file = file;
+        this.ranges = ranges;
+        this.boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE) +
+                Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+
+        this.partHeads = new byte[ranges.size()][];
+        long length = 0;
+
+        for (int i = 0; i < ranges.size(); ++i) {
+            HttpRange range = ranges.get(i);
+
+            this.partHeads[i] = ((i == 0 ? "" : "\r\n") + "--" + this.boundary + "\r\n" +
+                    (contentType != null ? "Content-Type: " + contentType + "\r\n" : "") +
+                    "Content-Range: " + range.toContentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+            length += this.partHeads[i].length + range.getLength();
+        }
+
+        this.end = ("\r\n--" + this.boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.length = length + this.end.length;
+    }
+
+    /**
+     * @return The value of the {@code Content-Type} header
+     */
+    public @NotNull String getContentType() {
+        return "multipart/byteranges; boundary=" + this.boundary;
+    }
+
+    /**
+     * @return The exact length of the body in bytes
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    @Override
+    public void writeTo(@NotNull OutputStream out) throws IOException {
+        for (int i = 0; i < this.ranges.size(); ++i) {
+            HttpRange range = this.ranges.get(i);
+
+            out.write(this.partHeads[i]);
+            new FileRegion(this.file, range.getStart(), range.getLength()).copyTo(out);
+        }
+
+        out.write(this.end);
+    }
+}
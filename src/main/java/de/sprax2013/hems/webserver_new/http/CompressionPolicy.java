@@ -0,0 +1,298 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.DoubleSupplier;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether and how strongly a response body is compressed (see {@link WebResponse#setCompressionPolicy(CompressionPolicy)}).
+ * <br><br>
+ * Content types are matched by their media type (parameters like {@code charset} are ignored)
+ * against exact types (e.g. {@code text/html}), wildcards (e.g. {@code text/*}) and structured syntax suffixes
+ * (e.g. {@code *+json}). An exact match takes precedence over a wildcard or suffix, a denied type over an allowed one.
+ * <br><br>
+ * When a load monitor is set, the compression level is lowered while the load exceeds {@link #getHighLoad()}
+ * and bodies are sent uncompressed while it exceeds {@link #getOverload()}, as compression is the first thing
+ * worth giving up when the CPU is saturated.
+ */
+public class CompressionPolicy {
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    /**
+     * Every worker is busy and connections start to wait (see {@link HemsWebServer#getWorkerUtilization()})
+     */
+    public static final double DEFAULT_HIGH_LOAD = 1.0;
+    /**
+     * More connections are waiting than there are workers
+     */
+    public static final double DEFAULT_OVERLOAD = 2.0;
+
+    /**
+     * Returned by {@link #getLevelForCurrentLoad(String)} if the body should not be compressed at all
+     */
+    public static final int SKIP = -2;
+
+    private int minSize = DEFAULT_MIN_SIZE;
+
+    private final Set<String> allowedTypes = new LinkedHashSet<>(Arrays.asList(
+            "text/*", "*+json", "*+xml",
+            "application/javascript", "application/json", "application/xml", "application/wasm",
+            "image/svg+xml", "image/x-icon", "image/vnd.microsoft.icon", "image/bmp"));
+    private final Set<String> deniedTypes = new LinkedHashSet<>(Arrays.asList(
+            "image/*", "audio/*", "video/*", "font/woff", "font/woff2", "text/event-stream",
+            "application/zip", "application/gzip", "application/x-gzip", "application/zstd", "application/pdf"));
+
+    private int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+    private final Map<String, Integer> levels = new LinkedHashMap<>();
+
+    private @Nullable DoubleSupplier loadMonitor;
+    private double highLoad = DEFAULT_HIGH_LOAD;
+    private int highLoadLevel = Deflater.BEST_SPEED;
+    private double overload = DEFAULT_OVERLOAD;
+
+    /**
+     * @param contentType The response's {@code Content-Type}
+     * @param length      The length of the uncompressed body in bytes
+     *
+     * @return true, if a body of this type and size is worth compressing (regardless of the current load)
+     */
+    public boolean isCompressible(@Nullable String contentType, long length) {
+        if (length < this.minSize || contentType == null) return false;
+
+        String type = getMediaType(contentType);
+
+        if (this.deniedTypes.contains(type)) return false;
+        if (this.allowedTypes.contains(type)) return true;
+
+        return !matchesPattern(this.deniedTypes, type) && matchesPattern(this.allowedTypes, type);
+    }
+
+    /**
+     * @return The configured compression level for the given type (between 1 and 9 or {@link Deflater#DEFAULT_COMPRESSION})
+     */
+    public int getLevel(@Nullable String contentType) {
+        if (contentType != null && !this.levels.isEmpty()) {
+            String type = getMediaType(contentType);
+
+            Integer level = this.levels.get(type);
+            if (level != null) return level;
+
+            for (Map.Entry<String, Integer> entry : this.levels.entrySet()) {
+                if (matchesPattern(entry.getKey(), type)) {
+                    return entry.getValue();
+                }
+            }
+        }
+
+        return this.defaultLevel;
+    }
+
+    /**
+     * @return The compression level for the given type considering the current load or {@link #SKIP}
+     */
+    public int getLevelForCurrentLoad(@Nullable String contentType) {
+        int level = getLevel(contentType);
+
+        if (this.loadMonitor != null) {
+            double load = this.loadMonitor.getAsDouble();
+
+            if (load > this.overload) {
+                return SKIP;
+            }
+
+            if (load > this.highLoad && (level == Deflater.DEFAULT_COMPRESSION || level > this.highLoadLevel)) {
+                return this.highLoadLevel;
+            }
+        }
+
+        return level;
+    }
+
+    public int getMinSize() {
+        return this.minSize;
+    }
+
+    /**
+     * @param minSize The minimum size in bytes a body needs to have to be compressed, as the framing overhead
+     *                outweighs the savings for small bodies
+     *
+     * @return The same {@link CompressionPolicy} instance for chaining
+     */
+    public CompressionPolicy setMinSize(int minSize) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("minSize may not be negative");
+        }
+
+        this.minSize = minSize;
+
+        return this;
+    }
+
+    /**
+     * @param type A media type (e.g. {@code text/html}), wildcard (e.g. {@code text/*}) or suffix (e.g. {@code *+json})
+     *
+     * @return The same {@link CompressionPolicy} instance for chaining
+     */
+    public CompressionPolicy allow(@NotNull String type) {
+        type = type.toLowerCase(Locale.ROOT);
+
+        this.deniedTypes.remove(type);
+        this.allowedTypes.add(type);
+
+        return this;
+    }
+
+    /**
+     * @param type A media type (e.g. {@code image/png}), wildcard (e.g. {@code image/*}) or suffix (e.g. {@code *+zip})
+     *
+     * @return The same {@link CompressionPolicy} instance for chaining
+     */
+    public CompressionPolicy deny(@NotNull String type) {
+        type = type.toLowerCase(Locale.ROOT);
+
+        this.allowedTypes.remove(type);
+        this.deniedTypes.add(type);
+
+        return this;
+    }
+
+    public int getDefaultLevel() {
+        return this.defaultLevel;
+    }
+
+    /**
+     * @param level The compression level used for types without a level of their own
+     *
+     * @return The same {@link CompressionPolicy} instance for chaining
+     */
+    public CompressionPolicy setDefaultLevel(int level) {
+        this.defaultLevel = checkLevel(level);
+
+        return this;
+    }
+
+    /**
+     * @param type  A media type, wildcard or suffix (see {@link #allow(String)})
+     * @param level The compression level between 1 and 9, or {@code null} to use the default level again
+     *
+     * @return The same {@link CompressionPolicy} instance for chaining
+     */
+    public CompressionPolicy setLevel(@NotNull String type, @Nullable Integer level) {
+        type = type.toLowerCase(Locale.ROOT);
+
+        if (level == null) {
+            this.levels.remove(type);
+        } else {
+            this.levels.put(type, checkLevel(level));
+        }
+
+        return this;
+    }
+
+    public @Nullable DoubleSupplier getLoadMonitor() {
+        return this.loadMonitor;
+    }
+
+    /**
+     * @param loadMonitor Returns the current load (e.g. {@link HemsWebServer#getWorkerUtilization()}),
+     *                    {@code null} to ignore the load
+     *
+     * @return The same {@link CompressionPolicy} instance for chaining
+     */
+    public CompressionPolicy setLoadMonitor(@Nullable DoubleSupplier loadMonitor) {
+        this.loadMonitor = loadMonitor;
+
+        return this;
+    }
+
+    public double getHighLoad() {
+        return this.highLoad;
+    }
+
+    public int getHighLoadLevel() {
+        return this.highLoadLevel;
+    }
+
+    /**
+     * @param load  The load above which bodies are compressed using {@code level} at most
+     * @param level The compression level used under high load
+     *
+     * @return The same {@link CompressionPolicy} instance for chaining
+     */
+    public CompressionPolicy setHighLoad(double load, int level) {
+        if (load < 0) {
+            throw new IllegalArgumentException("load may not be negative");
+        }
+
+        this.highLoad = load;
+        this.highLoadLevel = checkLevel(level);
+
+        return this;
+    }
+
+    public double getOverload() {
+        return this.overload;
+    }
+
+    /**
+     * @param load The load above which bodies are not compressed at all
+     *
+     * @return The same {@link CompressionPolicy} instance for chaining
+     */
+    public CompressionPolicy setOverload(double load) {
+        if (load < 0) {
+            throw new IllegalArgumentException("load may not be negative");
+        }
+
+        this.overload = load;
+
+        return this;
+    }
+
+    private static int checkLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("level has to be between 1 and 9 (or -1 for the default level)");
+        }
+
+        return level;
+    }
+
+    /**
+     * @return The lower case media type without any parameters (e.g. {@code text/html} for {@code text/html; charset=utf-8})
+     */
+    private static @NotNull String getMediaType(@NotNull String contentType) {
+        int end = contentType.indexOf(';');
+
+        return (end == -1 ? contentType : contentType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean matchesPattern(@NotNull Set<String> patterns, @NotNull String type) {
+        for (String pattern : patterns) {
+            if (matchesPattern(pattern, type)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean matchesPattern(@NotNull String pattern, @NotNull String type) {
+        if (pattern.startsWith("*")) {
+            return type.endsWith(pattern.substring(1));
+        }
+
+        if (pattern.endsWith("/*")) {
+            return type.startsWith(pattern.substring(0, pattern.length() - 1));
+        }
+
+        return Objects.equals(pattern, type);
+    }
+}
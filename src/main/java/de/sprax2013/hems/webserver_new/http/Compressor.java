@@ -0,0 +1,245 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A reusable {@link Deflater} with its output buffer, producing {@code gzip} (RFC 1952) or {@code deflate} (RFC 1950) data.
+ * <br><br>
+ * Every {@link Deflater} holds native zlib state that is only freed by {@link Deflater#end()} (or eventually by the GC),
+ * so instances are kept in a small pool striped by thread instead of being created per response.
+ * Use {@link #acquire(String, int)} and hand the instance back using {@link #release()} once done.
+ */
+final class Compressor {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int STRIPE_CAPACITY = 2;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private static final ArrayBlockingQueue<Compressor>[] GZIP_POOL = createPool();
+    private static final ArrayBlockingQueue<Compressor>[] DEFLATE_POOL = createPool();
+
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private Compressor(boolean gzip) {
+        this.gzip = gzip;
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+    }
+
+    /**
+     * @param encoding {@code gzip} or {@code deflate}
+     * @param level    The compression level (see {@link Deflater#setLevel(int)})
+     *
+     * @return A pooled or new instance, that has to be {@link #release() released} after use
+     */
+    static @NotNull Compressor acquire(@NotNull String encoding, int level) {
+        boolean gzip = encoding.equals("gzip");
+
+        Compressor compressor = getStripe(gzip).poll();
+        if (compressor == null) {
+            compressor = new Compressor(gzip);
+        }
+
+        compressor.deflater.setLevel(level);
+
+        return compressor;
+    }
+
+    /**
+     * Resets this instance and returns it to the pool (or frees it, if the pool is full).
+     * This instance may not be used afterwards.
+     */
+    void release() {
+        this.deflater.reset();
+        this.crc.reset();
+
+        if (!getStripe(this.gzip).offer(this)) {
+            this.deflater.end();
+        }
+    }
+
+    /**
+     * @param maxLength The maximum length the compressed data may have
+     *
+     * @return The compressed data or {@code null} if it would be longer than {@code maxLength}
+     */
+    @Nullable byte[] compress(byte[] data, int maxLength) {
+        byte[] out = this.buffer;
+        int length = 0;
+
+        if (this.gzip) {
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            length = GZIP_HEADER.length;
+
+            this.crc.update(data, 0, data.length);
+        }
+
+        this.deflater.setInput(data);
+        this.deflater.finish();
+
+        while (true) {
+            length += this.deflater.deflate(out, length, out.length - length);
+
+            if (this.deflater.finished()) break;
+
+            // A changed level is applied by a call of its own, that returns early with room left in the buffer
+            if (length < out.length) continue;
+
+            if (out.length >= maxLength) return null;
+
+            // Only spills out of the pooled buffer for large bodies
+            out = Arrays.copyOf(out, (int) Math.min(out.length * 2L, maxLength));
+        }
+
+        int totalLength = length + (this.gzip ? GZIP_TRAILER_SIZE : 0);
+        if (totalLength > maxLength) return null;
+
+        byte[] result = Arrays.copyOf(out, totalLength);
+
+        if (this.gzip) {
+            writeGzipTrailer(result, length);
+        }
+
+        return result;
+    }
+
+    /**
+     * Compresses everything written to the returned stream into {@code out}, without buffering the whole body.
+     * Closing the returned stream finishes the compressed data and {@link #release() releases} this instance,
+     * without closing {@code out}.
+     */
+    @NotNull OutputStream newOutputStream(@NotNull OutputStream out) {
+        return new CompressingOutputStream(out);
+    }
+
+    private void writeGzipTrailer(byte[] dst, int off) {
+        int crc = (int) this.crc.getValue();
+        int size = (int) this.deflater.getBytesRead();   // Modulo 2^32
+
+        dst[off] = (byte) crc;
+        dst[off + 1] = (byte) (crc >> 8);
+        dst[off + 2] = (byte) (crc >> 16);
+        dst[off + 3] = (byte) (crc >> 24);
+        dst[off + 4] = (byte) size;
+        dst[off + 5] = (byte) (size >> 8);
+        dst[off + 6] = (byte) (size >> 16);
+        dst[off + 7] = (byte) (size >> 24);
+    }
+
+    private static @NotNull ArrayBlockingQueue<Compressor> getStripe(boolean gzip) {
+        ArrayBlockingQueue<Compressor>[] pool = gzip ? GZIP_POOL : DEFLATE_POOL;
+
+        return pool[(int) Thread.currentThread().getId() & (pool.length - 1)];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayBlockingQueue<Compressor>[] createPool() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+        ArrayBlockingQueue<Compressor>[] pool = new ArrayBlockingQueue[stripes];
+        for (int i = 0; i < pool.length; ++i) {
+            pool[i] = new ArrayBlockingQueue<>(STRIPE_CAPACITY);
+        }
+
+        return pool;
+    }
+
+    private final class CompressingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private boolean headerWritten;
+        private boolean closed;
+
+        private CompressingOutputStream(@NotNull OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream has already been closed");
+            }
+
+            if (len == 0) return;
+
+            if (Compressor.this.gzip) {
+                Compressor.this.crc.update(b, off, len);
+            }
+
+            Compressor.this.deflater.setInput(b, off, len);
+
+            while (!Compressor.this.deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Sends everything written so far, which hurts the compression ratio - Only flush when necessary
+         */
+        @Override
+        public void flush() throws IOException {
+            if (this.closed) return;
+
+            int n;
+            do {
+                n = deflate(Deflater.SYNC_FLUSH);
+            } while (n == BUFFER_SIZE);
+
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) return;
+            this.closed = true;
+
+            try {
+                Compressor.this.deflater.finish();
+
+                while (!Compressor.this.deflater.finished()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+
+                if (Compressor.this.gzip) {
+                    writeGzipTrailer(Compressor.this.buffer, 0);
+                    this.out.write(Compressor.this.buffer, 0, GZIP_TRAILER_SIZE);
+                }
+            } finally {
+                release();
+            }
+        }
+
+        private int deflate(int flush) throws IOException {
+            if (!this.headerWritten) {
+                this.headerWritten = true;
+
+                if (Compressor.this.gzip) {
+                    this.out.write(GZIP_HEADER);
+                }
+            }
+
+            int n = Compressor.this.deflater.deflate(Compressor.this.buffer, 0, BUFFER_SIZE, flush);
+
+            if (n > 0) {
+                this.out.write(Compressor.this.buffer, 0, n);
+            }
+
+            return n;
+        }
+    }
+}
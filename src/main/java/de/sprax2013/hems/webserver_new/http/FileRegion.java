@@ -0,0 +1,117 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A response body that is streamed from a file instead of being held in memory.
+ * <br><br>
+ * Plain connections use {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets the kernel
+ * copy the file to the socket (e.g. {@code sendfile} on Linux). Encrypted connections need the data in user space,
+ * so the file is copied in chunks using pooled buffers instead.
+ */
+public final class FileRegion {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 64;
+    private static final Queue<byte[]> CHUNK_POOL = new ConcurrentLinkedQueue<>();
+
+    private final Path path;
+    private final long offset;
+    private final long length;
+
+    /**
+     * @param path   The file to send
+     * @param offset The position of the first byte to send
+     * @param length The number of bytes to send
+     */
+    public FileRegion(@NotNull Path path, long offset, long length) {
+        if (offset < 0) throw new IllegalArgumentException("offset may not be negative");
+        if (length < 0) throw new IllegalArgumentException("length may not be negative");
+
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public @NotNull Path getPath() {
+        return this.path;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    @NotNull
+    FileChannel open() throws IOException {
+        return FileChannel.open(this.path, StandardOpenOption.READ);
+    }
+
+    /**
+     * Sends the whole region to a blocking channel
+     */
+    void transferTo(@NotNull WritableByteChannel target) throws IOException {
+        try (FileChannel file = open()) {
+            long position = this.offset;
+            long end = this.offset + this.length;
+
+            while (position < end) {
+                long transferred = file.transferTo(position, end - position, target);
+
+                if (transferred <= 0 && position >= file.size()) {
+                    throw new EOFException("File has been truncated while sending it");
+                }
+
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * Sends the whole region by copying it in chunks
+     */
+    void copyTo(@NotNull OutputStream out) throws IOException {
+        byte[] chunk = CHUNK_POOL.poll();
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+
+        try (FileChannel file = open()) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long position = this.offset;
+            long remaining = this.length;
+
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(chunk.length, remaining));
+
+                int read = file.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException("File has been truncated while sending it");
+                }
+
+                out.write(chunk, 0, read);
+
+                position += read;
+                remaining -= read;
+            }
+        } finally {
+            // Only a few threads are expected to send files at the same time, don't keep more chunks than that around
+            if (CHUNK_POOL.size() < MAX_POOLED_CHUNKS) {
+                CHUNK_POOL.add(chunk);
+            }
+        }
+    }
+}
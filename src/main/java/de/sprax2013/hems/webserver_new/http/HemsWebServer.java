@@ -4,21 +4,27 @@ import de.sprax2013.hems.webserver.HttpStatusCode;
 import de.sprax2013.hems.webserver_new.NewMain;
 import de.sprax2013.hems.webserver_new.http.router.Router;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -26,27 +32,65 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.time.LocalDateTime;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class HemsWebServer extends Router {
+    public static final int DEFAULT_KEEP_ALIVE_MAX_REQUESTS = 100;
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5_000;
+    public static final int DEFAULT_WORKER_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_RETRY_AFTER = 5;
+
     private final Map<String, String> defaultHeaders = new LinkedHashMap<>();
+    private final HttpResponseWriter.StaticHeaders encodedDefaultHeaders;
+
+    private int keepAliveMaxRequests = DEFAULT_KEEP_ALIVE_MAX_REQUESTS;
+    private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+
+    private int workerQueueCapacity = DEFAULT_WORKER_QUEUE_CAPACITY;
+    private @NotNull OverloadPolicy overloadPolicy = OverloadPolicy.SERVICE_UNAVAILABLE;
+    private int retryAfter = DEFAULT_RETRY_AFTER;
+    private byte[] serviceUnavailableResponse;
+
+    private @Nullable CompressionPolicy compressionPolicy = new CompressionPolicy().setLoadMonitor(this::getWorkerUtilization);
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    private final TransportMode transportMode;
 
     private ServerSocket srv;
     private ExecutorService pool;
+    private NioTransport nioTransport;
 
     private SSLServerSocket secureSrv;
     private ExecutorService securePool;
 
     public HemsWebServer(boolean logRequests) {
-        this.defaultHeaders.put("connection", "close");
+        this(logRequests, TransportMode.BLOCKING);
+    }
+
+    /**
+     * @param logRequests   true, if every request should be logged to {@link System#out}
+     * @param transportMode How {@link #listen(int)} should accept connections and read requests
+     */
+    public HemsWebServer(boolean logRequests, @NotNull TransportMode transportMode) {
+        this.transportMode = Objects.requireNonNull(transportMode);
+
         this.defaultHeaders.put("referrer-policy", "strict-origin-when-cross-origin");
         this.defaultHeaders.put("server", "HEMS-Webserver (implemented by SpraxDev)");
         this.defaultHeaders.put("x-git", "https://github.com/SpraxDev/HEMS-Webserver");
+        this.encodedDefaultHeaders = HttpResponseWriter.encodeStaticHeaders(this.defaultHeaders);
 
         if (logRequests) {
             use((req, res) -> {
@@ -60,12 +104,12 @@ public class HemsWebServer extends Router {
                         reqTime = String.valueOf(BigDecimal.valueOf(reqNanos / 1_000_000.0).setScale(2, RoundingMode.HALF_UP).doubleValue());
                     }
 
-                    System.out.println("[" + WebResponse.DATE_FORMATTER.format(LocalDateTime.now()) + "] " +
+                    System.out.println("[" + HttpDate.now() + "] " +
                             eReq.getRemoteHost() + " | " +
                             eReq.getMethod() + " " +
                             eReq.getRawPath() + " " +
                             eRes.getStatus().code + " with " +
-                            eRes.getEffectiveBody(eReq).length + " bytes | " +
+                            eRes.getEffectiveBodyLength(eReq) + " bytes | " +
                             "\"" + eReq.getHeader("User-Agent") + "\" | " + reqTime + " ms");
                 });
 
@@ -75,6 +119,10 @@ public class HemsWebServer extends Router {
     }
 
     public int getPort() {
+        if (this.nioTransport != null) {
+            return this.nioTransport.getPort();
+        }
+
         return this.srv != null ? this.srv.getLocalPort() : -1;
     }
 
@@ -82,6 +130,178 @@ public class HemsWebServer extends Router {
         return this.secureSrv != null ? this.secureSrv.getLocalPort() : -1;
     }
 
+    public int getKeepAliveMaxRequests() {
+        return this.keepAliveMaxRequests;
+    }
+
+    /**
+     * @param maxRequests The maximum number of requests served on a single connection before it gets closed
+     *                    ({@code 1} disables keep-alive, {@code 0} removes the limit)
+     *
+     * @return The same {@link HemsWebServer} instance for chaining
+     */
+    public HemsWebServer setKeepAliveMaxRequests(int maxRequests) {
+        if (maxRequests < 0) {
+            throw new IllegalArgumentException("maxRequests may not be negative");
+        }
+
+        this.keepAliveMaxRequests = maxRequests;
+
+        return this;
+    }
+
+    public int getKeepAliveTimeout() {
+        return this.keepAliveTimeout;
+    }
+
+    /**
+     * @param timeout The time in milliseconds an idle connection is kept open while waiting for the next request
+     *
+     * @return The same {@link HemsWebServer} instance for chaining
+     */
+    public HemsWebServer setKeepAliveTimeout(int timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout has to be greater than 0");
+        }
+
+        this.keepAliveTimeout = timeout;
+
+        return this;
+    }
+
+    public int getWorkerQueueCapacity() {
+        return this.workerQueueCapacity;
+    }
+
+    /**
+     * Only used by {@link TransportMode#BLOCKING} and only applied by the next call to {@link #listen(int)}
+     * or {@link #listenSecure(int)}.
+     *
+     * @param capacity The number of accepted connections that may wait for a free worker,
+     *                 before the {@link OverloadPolicy} is applied
+     *
+     * @return The same {@link HemsWebServer} instance for chaining
+     */
+    public HemsWebServer setWorkerQueueCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity may not be negative");
+        }
+
+        this.workerQueueCapacity = capacity;
+
+        return this;
+    }
+
+    public @NotNull OverloadPolicy getOverloadPolicy() {
+        return this.overloadPolicy;
+    }
+
+    /**
+     * @param policy What to do with new connections while the work queue is full
+     *
+     * @return The same {@link HemsWebServer} instance for chaining
+     */
+    public HemsWebServer setOverloadPolicy(@NotNull OverloadPolicy policy) {
+        this.overloadPolicy = Objects.requireNonNull(policy);
+
+        return this;
+    }
+
+    public int getRetryAfter() {
+        return this.retryAfter;
+    }
+
+    /**
+     * @param seconds The value of the <em>Retry-After</em> header sent by {@link OverloadPolicy#SERVICE_UNAVAILABLE}
+     *
+     * @return The same {@link HemsWebServer} instance for chaining
+     */
+    public HemsWebServer setRetryAfter(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("seconds may not be negative");
+        }
+
+        this.retryAfter = seconds;
+        this.serviceUnavailableResponse = null;
+
+        return this;
+    }
+
+    /**
+     * @return The number of connections accepted since the server has been created
+     */
+    public long getAcceptedConnections() {
+        return this.acceptedConnections.get();
+    }
+
+    /**
+     * @return The number of connections currently waiting for a free worker
+     * (or, using {@link TransportMode#NIO}, with data ready to be processed by their busy event loop)
+     */
+    public int getQueuedConnections() {
+        return getQueueSize(this.pool) + getQueueSize(this.securePool) +
+                (this.nioTransport != null ? this.nioTransport.getQueuedConnections() : 0);
+    }
+
+    /**
+     * @return The number of connections rejected by the {@link OverloadPolicy} since the server has been created
+     */
+    public long getRejectedConnections() {
+        return this.rejectedConnections.get();
+    }
+
+    /**
+     * @return The number of requests currently being routed or having their body compressed
+     * (not counting the time their response waits for the client to receive it)
+     */
+    public int getActiveRequests() {
+        return this.activeRequests.get();
+    }
+
+    /**
+     * The number of {@link #getActiveRequests() active requests} per available processor,
+     * e.g. {@code 1.0} if every processor is busy routing or compressing.
+     * <ul>
+     *     <li>{@link TransportMode#BLOCKING} - Connections waiting for a free worker are added,
+     *     so the value exceeds {@code 1.0} once every worker is busy and connections start to queue up</li>
+     *     <li>{@link TransportMode#NIO} - Connections with data ready, that wait for their busy event loop, are added</li>
+     *     <li>{@link TransportMode#VIRTUAL_THREADS} - Only active requests are counted, as every connection gets a thread
+     *     of its own and nothing is queued</li>
+     * </ul>
+     */
+    public double getWorkerUtilization() {
+        int load = this.activeRequests.get();
+
+        if (this.transportMode != TransportMode.VIRTUAL_THREADS) {
+            load += getQueuedConnections();
+        }
+
+        return (double) load / Runtime.getRuntime().availableProcessors();
+    }
+
+    public @Nullable CompressionPolicy getCompressionPolicy() {
+        return this.compressionPolicy;
+    }
+
+    /**
+     * By default, a {@link CompressionPolicy} using {@link #getWorkerUtilization()} as load monitor is used.
+     *
+     * @param policy The policy used for every response, {@code null} to disable compression
+     *
+     * @return The same {@link HemsWebServer} instance for chaining
+     *
+     * @see WebResponse#setCompressionPolicy(CompressionPolicy)
+     */
+    public HemsWebServer setCompressionPolicy(@Nullable CompressionPolicy policy) {
+        this.compressionPolicy = policy;
+
+        return this;
+    }
+
+    public @NotNull TransportMode getTransportMode() {
+        return this.transportMode;
+    }
+
     public Router route(@NotNull String path) {
         // TODO: Return new or existing route that equals (not just matches) the given path
 
@@ -89,95 +309,41 @@ public class HemsWebServer extends Router {
     }
 
     public void listen(int port) throws IOException {
-        if (this.srv != null && !this.srv.isClosed()) {
-            throw new IllegalStateException("Server is already running and listening on port " + this.srv.getLocalPort());
+        if ((this.srv != null && !this.srv.isClosed()) ||
+                (this.nioTransport != null && this.nioTransport.isOpen())) {
+            throw new IllegalStateException("Server is already running and listening on port " + getPort());
         }
 
         if (this.pool != null) {
             this.pool.shutdownNow();
         }
 
-        this.srv = new ServerSocket(port);
+        if (this.nioTransport != null) {
+            this.nioTransport.close();
+        }
 
         int cpuCount = Runtime.getRuntime().availableProcessors();
-        this.pool = Executors.newFixedThreadPool(cpuCount);
 
-        for (int i = 0; i < cpuCount; ++i) {
-            this.pool.execute(() -> {
-                try {
-                    while (!this.srv.isClosed()) {
-                        WebResponse res = null;
-                        WebRequest req = null;
-
-                        boolean invalidProtocol = false;
-
-                        try (Socket client = this.srv.accept();
-                             InputStream in = client.getInputStream();
-                             OutputStream out = client.getOutputStream()) {
-                            res = new WebResponse(this.defaultHeaders);
-
-                            try {
-                                req = WebRequest.parse(client, in);
-
-                                if (Objects.equals(req.getHeader("Upgrade-Insecure-Requests"), "1") &&
-                                        getSecurePort() != -1) {
-                                    String host = req.getHeader("Host");
-
-                                    if (host.lastIndexOf(':') != -1) {
-                                        host = host.substring(0, host.lastIndexOf(':'));
-                                    }
-
-                                    if (getSecurePort() != 443) {
-                                        host += ":" + getSecurePort();
-                                    }
-
-                                    res.setStatus(HttpStatusCode.TEMPORARY_REDIRECT)
-                                            .setHeader("Location", "https://" + host + req.getRawPath())
-                                            .setHeader("Vary", "Upgrade-Insecure-Requests");
-                                } else {
-                                    call(req, res);
-                                }
-                            } catch (HttpProtocolException httpEx) {
-                                res.setHeaders(this.defaultHeaders);
-                                res.send(httpEx.getHttpCode());
-                            } catch (Exception ex) {
-                                invalidProtocol = ex instanceof UnsupportedOperationException;
-
-                                if (!invalidProtocol) {
-                                    ex.printStackTrace();
-                                }
-
-                                StringWriter strW = new StringWriter();
-                                ex.printStackTrace(new PrintWriter(strW));
-
-                                res.setHeaders(this.defaultHeaders);
-                                res.send(HttpStatusCode.INTERNAL_SERVER_ERROR);
-                                res.setBody(strW.toString());
-                            }
-
-                            // TODO: call preSendEvent
-                            HttpUtils.writeHttpResponse(out, res.getStatus().code, res.getStatus().name,
-                                    res.getHeaders(), req != null ? res.getEffectiveBody(req) : res.getBody(), false);
-                        } catch (Exception ex) {
-                            if (!invalidProtocol) {
-                                ex.printStackTrace();
-                            }
-                        } finally {
-                            if (req != null) {
-                                req.callEvent(RequestEvent.CLIENT_DISCONNECTED, res);
-                            }
-                        }
-                    }
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
-            });
+        if (this.transportMode == TransportMode.NIO) {
+            this.nioTransport = new NioTransport(this, port, cpuCount);
+            return;
         }
+
+        ExecutorService workers = createWorkerPool(this.transportMode);
+
+        // Opened using a channel, so accepted sockets provide one for FileChannel#transferTo
+        this.srv = ServerSocketChannel.open().socket();
+        this.srv.bind(new InetSocketAddress(port));
+        this.pool = workers;
+
+        startAccepting(this.srv, this.pool, false);
     }
 
     /**
      * Starts listening for encrypted connection on a given port, using <em>TLSv1.2</em> and <em>TLSv1.3</em>.
      * <br><br>
+     * When using {@link TransportMode#NIO}, encrypted connections are served using {@link TransportMode#BLOCKING}.
+     * <br><br>
      * A self-signed certificate is used by default. You can replace it with a your own (e.g.
      * <code>keytool -genkeypair -v -alias SpraxDev/HEMS-WebServer -keyalg EC -keysize 256 -sigalg SHA256withECDSA
      * -keystore srvCert.p12 -storepass hemsWeb_SpraxDev -storetype pkcs12 -validity 5475 -ext san=ip:127.0.0.1,dns:localhost</code>)
@@ -196,6 +362,9 @@ public class HemsWebServer extends Router {
             this.securePool.shutdownNow();
         }
 
+        TransportMode secureMode = this.transportMode == TransportMode.NIO ? TransportMode.BLOCKING : this.transportMode;
+        ExecutorService workers = createWorkerPool(secureMode);
+
         try (InputStream certIn = NewMain.class.getResourceAsStream("/srvCert.p12")) {
             final char[] CERT_PASSWORD = "hemsWeb_SpraxDev".toCharArray();
 
@@ -212,69 +381,385 @@ public class HemsWebServer extends Router {
             this.secureSrv.setEnabledProtocols(new String[] {"TLSv1.2", "TLSv1.3"});
         }
 
+        this.securePool = workers;
+
+        startAccepting(this.secureSrv, this.securePool, true);
+    }
+
+    private @NotNull ExecutorService createWorkerPool(@NotNull TransportMode mode) {
+        if (mode == TransportMode.VIRTUAL_THREADS) {
+            try {
+                Method newExecutor = Class.forName(HemsWebServer.class.getPackageName() + ".VirtualThreadExecutors")
+                        .getDeclaredMethod("newExecutor", String.class);
+
+                return (ExecutorService) newExecutor.invoke(null, "HEMS-Worker-");
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                throw new UnsupportedOperationException("Virtual threads require Java 21 and a build using the 'java21' profile", ex);
+            }
+        }
+
         int cpuCount = Runtime.getRuntime().availableProcessors();
-        this.securePool = Executors.newFixedThreadPool(cpuCount);
 
-        for (int i = 0; i < cpuCount; ++i) {
-            this.securePool.execute(() -> {
+        return new ThreadPoolExecutor(cpuCount, cpuCount, 0L, TimeUnit.MILLISECONDS,
+                this.workerQueueCapacity > 0 ? new ArrayBlockingQueue<>(this.workerQueueCapacity) : new SynchronousQueue<>());
+    }
+
+    /**
+     * Starts a single acceptor thread, that submits every accepted connection to the given pool.
+     * Connections rejected by the pool are handled according to the {@link OverloadPolicy}.
+     */
+    private void startAccepting(@NotNull ServerSocket srv, @NotNull ExecutorService pool, boolean secure) {
+        Thread acceptor = new Thread(() -> {
+            while (!srv.isClosed()) {
                 try {
-                    while (!this.secureSrv.isClosed()) {
-                        WebResponse res = null;
-                        WebRequest req = null;
-
-                        boolean invalidProtocol = false;
-
-                        try (SSLSocket client = (SSLSocket) this.secureSrv.accept();
-                             InputStream in = client.getInputStream();
-                             OutputStream out = client.getOutputStream()) {
-                            res = new WebResponse(this.defaultHeaders);
-
-                            try {
-                                req = WebRequest.parse(client, in);
-
-                                call(req, res);
-                            } catch (HttpProtocolException httpEx) {
-                                res.setHeaders(this.defaultHeaders);
-                                res.send(httpEx.getHttpCode());
-                            } catch (SSLException ex) {
-                                throw ex; // Don't send any data to the client, just disconnect
-                            } catch (Exception ex) {
-                                invalidProtocol = ex instanceof UnsupportedOperationException;
-
-                                if (!invalidProtocol) {
-                                    ex.printStackTrace();
-                                }
-
-                                StringWriter strW = new StringWriter();
-                                ex.printStackTrace(new PrintWriter(strW));
-
-                                res.setHeaders(this.defaultHeaders);
-                                res.send(HttpStatusCode.INTERNAL_SERVER_ERROR);
-                                res.setBody(strW.toString());
-                            }
-
-                            // TODO: call preSendEvent
-                            HttpUtils.writeHttpResponse(out, res.getStatus().code, res.getStatus().name,
-                                    res.getHeaders(), req != null ? res.getEffectiveBody(req) : res.getBody(), false);
-                        } catch (SSLException ex) {
-                            System.err.println(ex.getClass().getName() + ": " + ex.getMessage());
-                        } catch (Exception ex) {
-                            if (!invalidProtocol) {
-                                ex.printStackTrace();
-                            }
-                        } finally {
-                            if (req != null) {
-                                req.callEvent(RequestEvent.CLIENT_DISCONNECTED, res);
-                            }
-                        }
+                    Socket client = srv.accept();
+                    this.acceptedConnections.incrementAndGet();
+
+                    try {
+                        pool.execute(() -> handleClient(client, secure));
+                    } catch (RejectedExecutionException ignore) {
+                        rejectConnection(client, secure);
                     }
                 } catch (Exception ex) {
-                    ex.printStackTrace();
+                    if (!srv.isClosed()) {
+                        ex.printStackTrace();
+                    }
                 }
-            });
+            }
+        }, "HEMS-Acceptor-" + srv.getLocalPort());
+
+        acceptor.start();
+    }
+
+    private void rejectConnection(@NotNull Socket client, boolean secure) {
+        this.rejectedConnections.incrementAndGet();
+
+        try (client) {
+            if (this.overloadPolicy == OverloadPolicy.SERVICE_UNAVAILABLE && !secure) {
+                client.getOutputStream().write(getServiceUnavailableResponse());
+            }
+        } catch (IOException ignore) {
+            // The connection is being dropped anyway
         }
     }
 
+    private byte[] getServiceUnavailableResponse() throws IOException {
+        byte[] result = this.serviceUnavailableResponse;
+
+        if (result == null) {
+            WebResponse res = new WebResponse(this.defaultHeaders)
+                    .send(HttpStatusCode.SERVICE_UNAVAILABLE)
+                    .setHeader("Date", null)
+                    .setHeader("Retry-After", String.valueOf(this.retryAfter))
+                    .setHeader("Connection", "close");
+
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            writeResponse(newResponseWriter(), bOut, null, null, res);
+
+            result = bOut.toByteArray();
+            this.serviceUnavailableResponse = result;
+        }
+
+        return result;
+    }
+
+    private static int getQueueSize(@Nullable ExecutorService pool) {
+        return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getQueue().size() : 0;
+    }
+
+    /**
+     * Serves requests on the given connection until the client closes it, the keep-alive timeout is reached
+     * or the maximum number of requests per connection has been served.
+     *
+     * @param client The accepted connection
+     * @param secure true, if the connection has been accepted by {@link #listenSecure(int)}
+     */
+    private void handleClient(@NotNull Socket client, boolean secure) {
+        try (client;
+             InputStream in = client.getInputStream();
+             OutputStream out = client.getOutputStream()) {
+            client.setSoTimeout(this.keepAliveTimeout);
+
+            HttpRequestParser parser = new HttpRequestParser(client, in);
+            HttpResponseWriter writer = newResponseWriter();
+            int requestCount = 0;
+
+            while (true) {
+                WebRequest req = null;
+                WebResponse res = null;
+
+                try {
+                    try {
+                        req = parser.parse();
+
+                        if (req == null) break;  // Client closed the connection or has been idle for too long
+
+                        if ("100-continue".equalsIgnoreCase(req.getHeader("Expect"))) {
+                            req.getRequestBody().expectContinue(out);
+                        }
+
+                        res = handleRequest(req, secure, false, ++requestCount);
+                        skipUnreadBody(req.getRequestBody(), res);
+                    } catch (IOException ex) {
+                        throw ex;   // Don't send any data to the client, just disconnect
+                    } catch (Exception ex) {
+                        res = createErrorResponse(ex);
+                    }
+
+                    writeResponse(writer, out, client.getChannel(), req, res);
+                } finally {
+                    if (req != null && res != null) {
+                        req.callEvent(RequestEvent.CLIENT_DISCONNECTED, res);
+                    }
+                }
+
+                if (isConnectionClose(res)) break;
+            }
+        } catch (SSLException ex) {
+            System.err.println(ex.getClass().getName() + ": " + ex.getMessage());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Routes a request and sets the headers telling the client whether the connection is kept open.
+     *
+     * @param req          The request to serve
+     * @param secure       true, if the request has been received over an encrypted connection
+     * @param eventLoop    true, if the response is written by an event loop, which must not block on compressing files
+     * @param requestCount The number of requests received on the connection, including {@code req}
+     *
+     * @return The response that should be sent to the client
+     */
+    @NotNull
+    WebResponse handleRequest(@NotNull WebRequest req, boolean secure, boolean eventLoop, int requestCount) {
+        WebResponse res = new WebResponse(this.defaultHeaders)
+                .setCompressionPolicy(this.compressionPolicy)
+                .setFileStreamCompression(!eventLoop);
+
+        if (!secure &&
+                Objects.equals(req.getHeader("Upgrade-Insecure-Requests"), "1") &&
+                getSecurePort() != -1) {
+            String host = req.getHeader("Host");
+
+            if (host.lastIndexOf(':') != -1) {
+                host = host.substring(0, host.lastIndexOf(':'));
+            }
+
+            if (getSecurePort() != 443) {
+                host += ":" + getSecurePort();
+            }
+
+            res.setStatus(HttpStatusCode.TEMPORARY_REDIRECT)
+                    .setHeader("Location", "https://" + host + req.getTarget())
+                    .setHeader("Vary", "Upgrade-Insecure-Requests");
+        } else {
+            this.activeRequests.incrementAndGet();
+
+            try {
+                call(req, res);
+            } finally {
+                this.activeRequests.decrementAndGet();
+            }
+        }
+
+        if (isKeepAlive(req, requestCount)) {
+            res.setHeader("Connection", "keep-alive");
+            res.setHeader("Keep-Alive", "timeout=" + (this.keepAliveTimeout / 1000) +
+                    (this.keepAliveMaxRequests > 0 ? ", max=" + (this.keepAliveMaxRequests - requestCount) : ""));
+        } else {
+            res.setHeader("Connection", "close");
+        }
+
+        return res;
+    }
+
+    /**
+     * Skips the part of the request body no route has read, so the next request can be read from the connection.
+     * Closes the connection instead, if that would mean receiving a lot of data (or asking the client to send it).
+     */
+    private static void skipUnreadBody(@NotNull RequestBody body, @NotNull WebResponse res) throws IOException {
+        if (body.getRemaining() == 0 || isConnectionClose(res)) return;
+
+        if (body.isContinuePending() || body.getRemaining() > RequestBody.MAX_DRAIN_LENGTH) {
+            res.setHeader("Connection", "close");
+            res.setHeader("Keep-Alive", null);
+        } else {
+            body.drain();
+        }
+    }
+
+    /**
+     * @param ex The exception that occurred while reading or parsing a request
+     *
+     * @return The response that should be sent to the client before the connection is closed
+     */
+    @NotNull
+    WebResponse createErrorResponse(@NotNull Exception ex) {
+        WebResponse res = new WebResponse(this.defaultHeaders);
+
+        if (ex instanceof HttpProtocolException) {
+            res.send(((HttpProtocolException) ex).getHttpCode());
+        } else {
+            if (!(ex instanceof UnsupportedOperationException)) {
+                ex.printStackTrace();
+            }
+
+            StringWriter strW = new StringWriter();
+            ex.printStackTrace(new PrintWriter(strW));
+
+            res.send(HttpStatusCode.INTERNAL_SERVER_ERROR);
+            res.setBody(strW.toString());
+        }
+
+        return res.setHeader("Connection", "close");
+    }
+
+    @NotNull
+    HttpResponseWriter newResponseWriter() {
+        return new HttpResponseWriter(this.encodedDefaultHeaders);
+    }
+
+    /**
+     * @param channel The channel backing {@code out}, if any (used to send files without copying them)
+     */
+    void writeResponse(@NotNull HttpResponseWriter writer, @NotNull OutputStream out, @Nullable WritableByteChannel channel,
+                       @Nullable WebRequest req, @NotNull WebResponse res) throws IOException {
+        byte[] body = getEffectiveBody(req, res);
+        boolean isHeadRequest = isHeadRequest(req);
+
+        // TODO: call preSendEvent
+        writer.write(out, res.getStatus(), res.getHeaders(), body, isHeadRequest);
+
+        FileRegion file = res.getFile();
+        BodyWriter bodyWriter = res.getBodyWriter();
+        String streamEncoding = req != null ? res.getStreamEncoding() : null;
+
+        if (!isHeadRequest) {
+            if (streamEncoding != null) {
+                BodyOutputStream bodyOut = new BodyOutputStream(out, -1);
+
+                this.activeRequests.incrementAndGet();
+
+                try {
+                    try (OutputStream compressedOut = Compressor.acquire(streamEncoding, res.getStreamLevel())
+                            .newOutputStream(new UncountedOutputStream(bodyOut))) {
+                        if (file != null) {
+                            file.copyTo(compressedOut);
+                        } else if (bodyWriter != null) {
+                            bodyWriter.writeTo(compressedOut);
+                        }
+                    }
+
+                    bodyOut.close();
+                } finally {
+                    this.activeRequests.decrementAndGet();
+                    res.setStreamedLength(bodyOut.getWritten());
+                }
+            } else if (file != null) {
+                if (channel != null) {
+                    file.transferTo(channel);
+                } else {
+                    file.copyTo(out);
+                }
+            } else if (bodyWriter != null) {
+                BodyOutputStream bodyOut = new BodyOutputStream(out, res.getBodyWriterLength());
+
+                try {
+                    bodyWriter.writeTo(bodyOut);
+                    bodyOut.close();
+                } finally {
+                    res.setStreamedLength(bodyOut.getWritten());
+                }
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+     * @see HttpResponseWriter#encode(HttpStatusCode, Map, byte[], boolean)
+     */
+    ByteBuffer[] encodeResponse(@NotNull HttpResponseWriter writer, @Nullable WebRequest req, @NotNull WebResponse res) {
+        byte[] body = getEffectiveBody(req, res);
+
+        // TODO: call preSendEvent
+        return writer.encode(res.getStatus(), res.getHeaders(), body, isHeadRequest(req));
+    }
+
+    /**
+     * @return true, if the body is produced or compressed while it is being sent,
+     * so it has to be written using {@link #writeResponse(HttpResponseWriter, OutputStream, WritableByteChannel, WebRequest, WebResponse)}
+     */
+    boolean isStreamed(@Nullable WebRequest req, @NotNull WebResponse res) {
+        if (res.getBodyWriter() != null) {
+            return true;
+        }
+
+        if (req != null && res.getFile() != null) {
+            getEffectiveBody(req, res);     // Decides whether the file is compressed
+
+            return res.getStreamEncoding() != null;
+        }
+
+        return false;
+    }
+
+    /**
+     * Counts the request as active while its body is compressed (if it is compressed as a whole)
+     */
+    private byte[] getEffectiveBody(@Nullable WebRequest req, @NotNull WebResponse res) {
+        if (req == null) return res.getBody();
+
+        this.activeRequests.incrementAndGet();
+
+        try {
+            return res.getEffectiveBody(req);
+        } finally {
+            this.activeRequests.decrementAndGet();
+        }
+    }
+
+    static boolean isHeadRequest(@Nullable WebRequest req) {
+        return req != null && req.getHttpMethod() == HttpMethod.HEAD;
+    }
+
+    static boolean isConnectionClose(@NotNull WebResponse res) {
+        return "close".equalsIgnoreCase(res.getHeader("Connection"));
+    }
+
+    /**
+     * @param req          The request that has just been parsed
+     * @param requestCount The number of requests received on the connection, including {@code req}
+     *
+     * @return true, if the connection should be kept open after the response to {@code req} has been sent
+     */
+    private boolean isKeepAlive(@NotNull WebRequest req, int requestCount) {
+        if (this.keepAliveMaxRequests > 0 && requestCount >= this.keepAliveMaxRequests) {
+            return false;
+        }
+
+        // We can't tell where the next request starts if a body has been sent that we did not read
+        if (req.getHeader("Transfer-Encoding") != null ||
+                (req.getHttpMethod() == HttpMethod.GET && req.getHeader("Content-Length") != null &&
+                        !req.getHeader("Content-Length").equals("0"))) {
+            return false;
+        }
+
+        String connection = req.getHeader("Connection");
+
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                if (token.trim().equalsIgnoreCase("close")) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
     @Override
     public boolean call(@NotNull WebRequest req, @NotNull WebResponse res) {
         try {
@@ -285,4 +770,43 @@ public class HemsWebServer extends Router {
 
         return true;
     }
-}
\ No newline at end of file
+
+    /**
+     * Doesn't count the time spent writing a compressed body to the client towards the active requests,
+     * as it is mostly spent waiting for the client
+     */
+    private final class UncountedOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        private UncountedOutputStream(@NotNull OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            HemsWebServer.this.activeRequests.decrementAndGet();
+
+            try {
+                this.out.write(b, off, len);
+            } finally {
+                HemsWebServer.this.activeRequests.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            HemsWebServer.this.activeRequests.decrementAndGet();
+
+            try {
+                this.out.flush();
+            } finally {
+                HemsWebServer.this.activeRequests.incrementAndGet();
+            }
+        }
+    }
+}
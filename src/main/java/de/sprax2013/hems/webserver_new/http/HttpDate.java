@@ -0,0 +1,92 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Caches the formatted value of the {@code Date} header field and formats or parses other HTTP-dates.
+ * <br><br>
+ * The header only has a resolution of one second, so the value is formatted at most once per second
+ * and shared by all threads instead of being formatted for every response.
+ */
+public final class HttpDate {
+    private static volatile CachedDate current = new CachedDate(System.currentTimeMillis() / 1000);
+
+    private HttpDate() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @return The current date formatted for the {@code Date} header field
+     */
+    public static @NotNull String now() {
+        return current().value;
+    }
+
+    /**
+     * @param millis Milliseconds since the epoch (e.g. a file's last modification time)
+     *
+     * @return The given time formatted as HTTP-date (RFC 7231, section 7.1.1.1)
+     */
+    public static @NotNull String format(long millis) {
+        return WebResponse.DATE_FORMATTER.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * @param value An HTTP-date (e.g. the value of {@code If-Modified-Since})
+     *
+     * @return The time in milliseconds since the epoch or {@code -1} if the value is missing or invalid
+     */
+    public static long parse(@Nullable String value) {
+        if (value == null) return -1;
+
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ignore) {
+            return -1;  // Obsolete formats (RFC 850, asctime) are treated as invalid
+        }
+    }
+
+    /**
+     * Returns the encoded header line, if the given value is the one currently cached.
+     * The check uses the identity of the given String, so it is cheap enough to be done for every response.
+     *
+     * @return The encoded {@code Date} header line or {@code null}
+     */
+    static byte[] getLine(@NotNull String value) {
+        CachedDate date = current;
+
+        return date.value == value ? date.line : null;
+    }
+
+    private static CachedDate current() {
+        CachedDate date = current;
+        long second = System.currentTimeMillis() / 1000;
+
+        if (date.second != second) {
+            // Concurrent refreshes just format the same value twice
+            date = new CachedDate(second);
+            current = date;
+        }
+
+        return date;
+    }
+
+    private static final class CachedDate {
+        private final long second;
+        private final String value;
+        private final byte[] line;
+
+        private CachedDate(long second) {
+            this.second = second;
+            this.value = WebResponse.DATE_FORMATTER.format(Instant.ofEpochSecond(second));
+            this.line = ("Date: " + this.value + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
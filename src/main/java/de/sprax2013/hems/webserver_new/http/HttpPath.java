@@ -0,0 +1,184 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import de.sprax2013.hems.webserver.HttpStatusCode;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes and normalizes the path of a request-target (RFC 3986, sections 2.1 and 5.2.4).
+ * <br><br>
+ * The result always starts with {@code /}, contains no empty, {@code .} or {@code ..} segments and has no trailing
+ * {@code /} (except for the root itself). Unlike {@link java.net.URLDecoder}, {@code +} is not turned into a space.
+ * Paths that are already normalized are returned without any copying besides creating the String.
+ */
+public final class HttpPath {
+    private HttpPath() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Percent-decodes and normalizes the given bytes of a request-target in a single pass.
+     * Decoded {@code /} are treated like any other {@code /}, so they can't be used to sneak {@code ..} past the normalization.
+     *
+     * @param src   The bytes to read from (e.g. the request head)
+     * @param start The index of the first byte of the path
+     * @param end   The index after the last byte of the path (e.g. the index of {@code ?})
+     *
+     * @return The normalized path
+     *
+     * @throws HttpProtocolException with {@link HttpStatusCode#BAD_REQUEST}, if a percent-encoding is malformed or a {@code NUL} is encoded
+     */
+    public static @NotNull String decode(byte[] src, int start, int end) throws HttpProtocolException {
+        if (isNormalized(src, start, end)) {
+            return new String(src, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        return normalize(src, start, end, true);
+    }
+
+    /**
+     * Normalizes the given (already decoded) path.
+     *
+     * @return The normalized path, which is the same instance if it has already been normalized
+     */
+    public static @NotNull String normalize(@NotNull String path) {
+        int length = path.length();
+
+        // Most paths are normalized already and don't need to be encoded to be checked
+        boolean normalized = length > 0 && path.charAt(0) == '/' && (length == 1 || path.charAt(length - 1) != '/');
+        for (int i = 1; normalized && i < length; ++i) {
+            if (path.charAt(i) == '/') {
+                normalized = path.charAt(i - 1) != '/';
+            } else if (path.charAt(i) == '.' && path.charAt(i - 1) == '/') {
+                normalized = !isDotSegment(path, i);
+            }
+        }
+
+        if (normalized) {
+            return path;
+        }
+
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+
+        try {
+            return normalize(bytes, 0, bytes.length, false);
+        } catch (HttpProtocolException ex) {
+            throw new IllegalStateException(ex);    // Only thrown when decoding
+        }
+    }
+
+    /**
+     * Removes the first segment of the given normalized path (e.g. {@code /home/foo.txt} becomes {@code /foo.txt})
+     *
+     * @return The remaining path or {@code /}
+     */
+    public static @NotNull String stripFirstSegment(@NotNull String path) {
+        if (path.length() <= 1) {
+            return "/";
+        }
+
+        int end = path.indexOf('/', 1);
+
+        return end == -1 ? "/" : path.substring(end);
+    }
+
+    private static boolean isNormalized(byte[] src, int start, int end) {
+        if (end <= start || src[start] != '/' || (end - start > 1 && src[end - 1] == '/')) {
+            return false;
+        }
+
+        for (int i = start + 1; i < end; ++i) {
+            byte b = src[i];
+
+            if (b == '%' ||
+                    (b == '/' && src[i - 1] == '/') ||
+                    (b == '.' && src[i - 1] == '/' && (i + 1 == end || src[i + 1] == '/' ||
+                            (src[i + 1] == '.' && (i + 2 == end || src[i + 2] == '/'))))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isDotSegment(@NotNull String path, int i) {
+        int length = path.length();
+
+        return i + 1 == length || path.charAt(i + 1) == '/' ||
+                (path.charAt(i + 1) == '.' && (i + 2 == length || path.charAt(i + 2) == '/'));
+    }
+
+    private static @NotNull String normalize(byte[] src, int start, int end, boolean decode) throws HttpProtocolException {
+        // Decoding only shrinks the input, the leading and one temporary trailing slash may be added
+        byte[] out = new byte[end - start + 2];
+        out[0] = '/';
+
+        int o = 1;
+        int segmentStart = 1;
+
+        for (int i = start; i < end; ++i) {
+            int b = src[i];
+
+            if (decode && b == '%') {
+                int hi = i + 2 < end ? Character.digit(src[i + 1], 16) : -1;
+                int lo = hi != -1 ? Character.digit(src[i + 2], 16) : -1;
+
+                if (lo == -1 || (hi == 0 && lo == 0)) {
+                    throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+                }
+
+                b = (hi << 4) | lo;
+                i += 2;
+            }
+
+            if (b == '/') {
+                o = endSegment(out, segmentStart, o);
+                segmentStart = o;
+            } else {
+                out[o++] = (byte) b;
+            }
+        }
+
+        o = endSegment(out, segmentStart, o);
+
+        if (o > 1) {
+            --o;    // Remove the trailing slash
+        }
+
+        return new String(out, 0, o, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Ends the segment starting at {@code segmentStart}, by appending a slash or removing it, if it is a dot-segment
+     *
+     * @return The new length of the output
+     */
+    private static int endSegment(byte[] out, int segmentStart, int o) {
+        int length = o - segmentStart;
+
+        if (length == 0) {
+            return o;   // Empty segment
+        }
+
+        if (length == 1 && out[segmentStart] == '.') {
+            return segmentStart;
+        }
+
+        if (length == 2 && out[segmentStart] == '.' && out[segmentStart + 1] == '.') {
+            if (segmentStart == 1) {
+                return 1;   // Can't go above the root
+            }
+
+            // Remove the previous segment too
+            int previousStart = segmentStart - 1;
+            while (out[previousStart - 1] != '/') --previousStart;
+
+            return previousStart;
+        }
+
+        out[o] = '/';
+
+        return o + 1;
+    }
+}
@@ -0,0 +1,168 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A satisfiable byte range of a representation, as requested using the {@code Range} header field (RFC 7233).
+ */
+public final class HttpRange {
+    /**
+     * Requests with more ranges (after overlapping ones have been merged) are answered with the whole representation,
+     * so clients can't make the server send the same data many times
+     */
+    public static final int MAX_RANGES = 16;
+
+    private final long start;
+    private final long length;
+
+    private HttpRange(long start, long length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    /**
+     * @return The index of the first byte
+     */
+    public long getStart() {
+        return this.start;
+    }
+
+    /**
+     * @return The index of the last byte (inclusive)
+     */
+    public long getEnd() {
+        return this.start + this.length - 1;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @param size The size of the whole representation
+     *
+     * @return The value of the {@code Content-Range} header for this range (e.g. {@code bytes 0-499/1234})
+     */
+    public @NotNull String toContentRange(long size) {
+        return "bytes " + this.start + '-' + getEnd() + '/' + size;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header field, which may contain open-ended ({@code 500-}),
+     * suffix ({@code -500}) and multiple ranges.
+     * Ranges exceeding the representation are shortened, overlapping and adjacent ranges are merged.
+     *
+     * @param header The value of the {@code Range} header
+     * @param size   The size of the whole representation
+     *
+     * @return The satisfiable ranges in ascending order, an empty list if none is satisfiable
+     * or {@code null} if the header should be ignored (it is invalid, uses another unit than {@code bytes}
+     * or asks for more than {@link #MAX_RANGES} ranges)
+     */
+    public static @Nullable List<HttpRange> parse(@Nullable String header, long size) {
+        if (header == null) return null;
+
+        int equalsIndex = header.indexOf('=');
+        if (equalsIndex == -1 || !header.substring(0, equalsIndex).trim().equalsIgnoreCase("bytes")) {
+            return null;
+        }
+
+        List<HttpRange> ranges = new ArrayList<>(1);
+        boolean hasRange = false;
+
+        for (String spec : header.substring(equalsIndex + 1).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) continue;   // Empty list elements are allowed
+
+            int dashIndex = spec.indexOf('-');
+            if (dashIndex == -1) return null;
+
+            long first = parseNumber(spec, 0, dashIndex);
+            long last = parseNumber(spec, dashIndex + 1, spec.length());
+
+            if (dashIndex == 0) {
+                // Suffix range with the number of bytes at the end
+                if (last == -1) return null;
+
+                if (last > 0 && size > 0) {
+                    long length = Math.min(last, size);
+
+                    ranges.add(new HttpRange(size - length, length));
+                }
+            } else {
+                if (first == -1 || (dashIndex + 1 < spec.length() && (last == -1 || last < first))) {
+                    return null;
+                }
+
+                if (first < size) {
+                    long end = last == -1 ? size - 1 : Math.min(last, size - 1);
+
+                    ranges.add(new HttpRange(first, end - first + 1));
+                }
+            }
+
+            hasRange = true;
+        }
+
+        if (!hasRange) return null;
+
+        ranges = coalesce(ranges);
+
+        return ranges.size() > MAX_RANGES ? null : ranges;
+    }
+
+    private static @NotNull List<HttpRange> coalesce(@NotNull List<HttpRange> ranges) {
+        if (ranges.size() < 2) return Collections.unmodifiableList(ranges);
+
+        ranges.sort(Comparator.comparingLong(HttpRange::getStart));
+
+        List<HttpRange> result = new ArrayList<>(ranges.size());
+        HttpRange current = ranges.get(0);
+
+        for (int i = 1; i < ranges.size(); ++i) {
+            HttpRange next = ranges.get(i);
+
+            if (next.start <= current.getEnd() + 1) {
+                long end = Math.max(current.getEnd(), next.getEnd());
+                current = new HttpRange(current.start, end - current.start + 1);
+            } else {
+                result.add(current);
+                current = next;
+            }
+        }
+
+        result.add(current);
+
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * @return The number ({@link Long#MAX_VALUE} if it overflows)
+     * or {@code -1} if the given part of {@code s} is empty or contains anything but digits
+     */
+    private static long parseNumber(@NotNull String s, int start, int end) {
+        if (start >= end) return -1;
+
+        long result = 0;
+
+        for (int i = start; i < end; ++i) {
+            char c = s.charAt(i);
+
+            if (c < '0' || c > '9') return -1;
+
+            if (result > (Long.MAX_VALUE - (c - '0')) / 10) {
+                result = Long.MAX_VALUE;    // Larger than any file anyway
+            } else {
+                result = result * 10 + (c - '0');
+            }
+        }
+
+        return result;
+    }
+}
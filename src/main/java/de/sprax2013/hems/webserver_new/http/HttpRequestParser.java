@@ -0,0 +1,373 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import de.sprax2013.hems.webserver.HttpStatusCode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads requests from a connection using a reusable buffer.
+ * <br><br>
+ * The request head is read in bulk and only tokenized into offsets. Header values are turned into
+ * {@link String}s once they are requested from the {@link WebRequest}.
+ * <br><br>
+ * A parser may read beyond the end of a request, so the same instance has to be used for every request
+ * received on a connection. Request bodies are not read by the parser but on demand (see {@link RequestBody}).
+ */
+public class HttpRequestParser {
+    static final int MAX_HEAD_SIZE = 16 * 1024;
+
+    private static final HttpMethod[] METHODS = HttpMethod.values();
+
+    private final @NotNull String remoteHost;
+    private final @NotNull InputStream in;
+
+    private byte[] buffer = new byte[4096];
+    private int pos;
+    private int limit;
+
+    /**
+     * The body of the last request, which has to be skipped before the next request can be read
+     */
+    private RequestBody body;
+
+    public HttpRequestParser(@NotNull Socket client, @NotNull InputStream in) {
+        this(client.getInetAddress().getHostAddress(), in);
+    }
+
+    public HttpRequestParser(@NotNull String remoteHost, @NotNull InputStream in) {
+        this.remoteHost = remoteHost;
+        this.in = in;
+    }
+
+    /**
+     * Reads the next request.
+     *
+     * @return The parsed request or {@code null}, if the client closed the connection or did not send anything
+     * before the socket timed out
+     */
+    public @Nullable WebRequest parse() throws IOException, HttpProtocolException {
+        if (this.body != null) {
+            this.body.drain();
+            this.body = null;
+        }
+
+        if (this.pos == this.limit) {
+            this.pos = 0;
+            this.limit = 0;
+
+            if (!fill(true)) {
+                return null;
+            }
+        }
+
+        checkFirstByte(this.buffer[this.pos]);
+
+        int headEnd;
+        int scanFrom = this.pos;
+
+        while ((headEnd = indexOfHeadEnd(this.buffer, scanFrom, this.limit)) == -1) {
+            if (this.limit - this.pos >= MAX_HEAD_SIZE) {
+                throw new HttpProtocolException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
+            }
+
+            int scannedBytes = Math.max(0, this.limit - this.pos - 3);
+
+            if (!fill(false)) {
+                throw new EOFException("Connection closed while reading the request head");
+            }
+
+            scanFrom = this.pos + scannedBytes;
+        }
+
+        WebRequest req = parseHead(this.remoteHost, Arrays.copyOfRange(this.buffer, this.pos, headEnd));
+        this.pos = headEnd;
+
+        long bodyLength = getBodyLength(req);
+
+        if (bodyLength > 0) {
+            this.body = new RequestBody(this, bodyLength);
+            req.setBody(this.body);
+        }
+
+        return req;
+    }
+
+    /**
+     * Reads body bytes, starting with the ones already buffered.
+     * The caller is responsible for not reading beyond the end of the body.
+     */
+    int readBody(byte[] b, int off, int len) throws IOException {
+        if (this.pos < this.limit) {
+            int n = Math.min(len, this.limit - this.pos);
+
+            System.arraycopy(this.buffer, this.pos, b, off, n);
+            this.pos += n;
+
+            return n;
+        }
+
+        return this.in.read(b, off, len);
+    }
+
+    /**
+     * @return The number of bytes that have been read from the connection but not consumed yet
+     */
+    int bufferedBytes() {
+        return this.limit - this.pos;
+    }
+
+    /**
+     * Reads more bytes into the buffer, moving or growing it if there is no space left.
+     *
+     * @param idle true, if a timeout should not be treated as an error because no request has been started yet
+     *
+     * @return false, if the stream ended or timed out while idle
+     */
+    private boolean fill(boolean idle) throws IOException, HttpProtocolException {
+        if (this.limit == this.buffer.length) {
+            if (this.pos > 0) {
+                System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+
+                this.limit -= this.pos;
+                this.pos = 0;
+            } else {
+                this.buffer = Arrays.copyOf(this.buffer, Math.min(this.buffer.length * 2, MAX_HEAD_SIZE));
+            }
+        }
+
+        int n;
+
+        try {
+            n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        } catch (SocketTimeoutException ex) {
+            if (idle) {
+                return false;
+            }
+
+            throw new HttpProtocolException(HttpStatusCode.REQUEST_TIME_OUT);
+        }
+
+        if (n == -1) {
+            return false;
+        }
+
+        this.limit += n;
+
+        return true;
+    }
+
+    /**
+     * Rejects connections early, that are obviously not speaking HTTP (e.g. a TLS handshake on the plain port)
+     */
+    static void checkFirstByte(byte firstByte) {
+        if (!Character.isAlphabetic(firstByte)) {
+            throw new UnsupportedOperationException("Received invalid first byte from client - Wrong protocol?");
+        }
+    }
+
+    /**
+     * @return The index directly after the first {@code \r\n\r\n} or {@code -1} if there is none
+     */
+    static int indexOfHeadEnd(byte[] buffer, int from, int to) {
+        for (int i = from; i + 3 < to; ++i) {
+            if (buffer[i + 3] != '\n') {
+                continue;   // Most bytes are not part of a CRLF, so check the last byte of the sequence first
+            }
+
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r') {
+                return i + 4;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return The number of body bytes that follow the head of the given request
+     */
+    static long getBodyLength(@NotNull WebRequest req) throws HttpProtocolException {
+        if (req.getHttpMethod() == HttpMethod.GET) {
+            return 0;
+        }
+
+        String contentLength = req.getHeader("Content-Length");
+
+        if (contentLength == null) {
+            return 0;
+        }
+
+        try {
+            long result = Long.parseLong(contentLength);
+
+            if (result < 0) {
+                throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+            }
+
+            return result;
+        } catch (NumberFormatException ignore) {
+            throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST); // Invalid value for Content-Length
+        }
+    }
+
+    /**
+     * @param head The complete request head, including the empty line at its end.
+     *             The array is owned by the returned request afterwards.
+     */
+    static @NotNull WebRequest parseHead(@NotNull String remoteHost, byte[] head) throws HttpProtocolException {
+        int lineEnd = indexOfCRLF(head, 0);
+
+        // Parse Method, Path and HTTP-Version
+        int methodEnd = indexOf(head, (byte) ' ', 0, lineEnd);
+        int targetEnd = lastIndexOf(head, (byte) ' ', lineEnd);
+
+        if (methodEnd <= 0 || targetEnd <= methodEnd) {
+            throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+        }
+
+        for (int i = 0; i < methodEnd; ++i) {
+            if (head[i] >= 'a' && head[i] <= 'z') {
+                throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST); // Methods need to be uppercase
+            }
+        }
+
+        if (!equalsIgnoreCaseTrimmed(head, targetEnd + 1, lineEnd, "HTTP/1.1")) {
+            throw new HttpProtocolException(HttpStatusCode.HTTP_VERSION_NOT_SUPPORTED);
+        }
+
+        HttpMethod httpMethod = toMethod(head, methodEnd);
+        String method = httpMethod != null ? httpMethod.name() : new String(head, 0, methodEnd, StandardCharsets.US_ASCII);
+
+        String target = new String(head, methodEnd + 1, targetEnd - methodEnd - 1, StandardCharsets.UTF_8);
+
+        // The query is kept as is and only parsed once it is accessed
+        int queryStartIndex = indexOf(head, (byte) '?', methodEnd + 1, targetEnd);
+        String path = HttpPath.decode(head, methodEnd + 1, queryStartIndex != -1 ? queryStartIndex : targetEnd);
+
+        // Parse Header fields
+        int[] headerOffsets = new int[16 * 4];
+        int headerCount = 0;
+
+        int lineStart = lineEnd + 2;
+        while ((lineEnd = indexOfCRLF(head, lineStart)) != lineStart) {
+            if (head[lineStart] == ' ' || head[lineStart] == '\t') {
+                // Obsolete line folding (RFC 7230, section 3.2.4)
+                throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+            }
+
+            int colon = indexOf(head, (byte) ':', lineStart, lineEnd);
+
+            if (colon <= lineStart) {
+                throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+            }
+
+            if ((headerCount + 1) * 4 > headerOffsets.length) {
+                headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+            }
+
+            int valueStart = colon + 1;
+            int valueEnd = lineEnd;
+            int nameEnd = colon;
+
+            while (valueStart < valueEnd && isWhitespace(head[valueStart])) ++valueStart;
+            while (valueEnd > valueStart && isWhitespace(head[valueEnd - 1])) --valueEnd;
+            while (nameEnd > lineStart && isWhitespace(head[nameEnd - 1])) --nameEnd;
+
+            int i = headerCount++ * 4;
+            headerOffsets[i] = lineStart;
+            headerOffsets[i + 1] = nameEnd;
+            headerOffsets[i + 2] = valueStart;
+            headerOffsets[i + 3] = valueEnd;
+
+            lineStart = lineEnd + 2;
+        }
+
+        WebRequest result = new WebRequest(remoteHost, httpMethod, method, target, path, head, headerOffsets, headerCount);
+
+        if (result.getHeader("Host") == null || result.getHeader("Host").isBlank()) {
+            throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The name of the matching {@link HttpMethod}, so known methods don't need a new {@link String}
+     */
+    private static @Nullable HttpMethod toMethod(byte[] head, int methodEnd) {
+        for (HttpMethod m : METHODS) {
+            String name = m.name();
+
+            if (name.length() == methodEnd && regionMatches(head, 0, name, false)) {
+                return m;
+            }
+        }
+
+        return null;
+    }
+
+    private static int indexOfCRLF(byte[] head, int from) {
+        for (int i = from; i + 1 < head.length; ++i) {
+            if (head[i] == '\r' && head[i + 1] == '\n') {
+                return i;
+            }
+        }
+
+        return head.length;   // Can't happen, as the head always ends with an empty line
+    }
+
+    private static int indexOf(byte[] head, byte b, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (head[i] == b) return i;
+        }
+
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] head, byte b, int to) {
+        for (int i = to - 1; i >= 0; --i) {
+            if (head[i] == b) return i;
+        }
+
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean equalsIgnoreCaseTrimmed(byte[] head, int from, int to, @NotNull String str) {
+        while (from < to && isWhitespace(head[from])) ++from;
+        while (to > from && isWhitespace(head[to - 1])) --to;
+
+        return to - from == str.length() && regionMatches(head, from, str, true);
+    }
+
+    /**
+     * Compares the ASCII bytes starting at {@code offset} with all characters of {@code str}
+     */
+    static boolean regionMatches(byte[] bytes, int offset, @NotNull String str, boolean ignoreCase) {
+        for (int i = 0; i < str.length(); ++i) {
+            int b = bytes[offset + i];
+            int c = str.charAt(i);
+
+            if (b != c) {
+                if (!ignoreCase) return false;
+
+                if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+                if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+
+                if (b != c) return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,244 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import de.sprax2013.hems.webserver.HttpStatusCode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializes responses using a reusable buffer, so status line and header fields are sent using a single write.
+ * <br><br>
+ * Formatted header field names are cached globally and the lines of a server's default headers are only
+ * encoded once (see {@link #encodeStaticHeaders(Map)}).
+ * A writer is not thread-safe and is meant to be reused for all responses sent on a connection.
+ */
+public class HttpResponseWriter {
+    /**
+     * Bodies up to this size are copied behind the head, so the whole response is sent using a single write
+     */
+    static final int COALESCE_LIMIT = 16 * 1024;
+
+    private static final int MAX_CACHED_HEADER_NAMES = 512;
+    private static final Map<String, byte[]> HEADER_NAMES = new ConcurrentHashMap<>();
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+
+    private final @Nullable StaticHeaders staticHeaders;
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+
+    /**
+     * @param staticHeaders Header fields that are sent with (nearly) every response, like a server's default headers
+     */
+    public HttpResponseWriter(@Nullable StaticHeaders staticHeaders) {
+        this.staticHeaders = staticHeaders;
+    }
+
+    public void write(@NotNull OutputStream out, int statusCode, @NotNull String statusMsg,
+                      @NotNull Map<String, String> headers, byte[] body, boolean isHeadRequest) throws IOException {
+        write(out, encodeStatusLine(statusCode, statusMsg), headers, body, isHeadRequest);
+    }
+
+    public void write(@NotNull OutputStream out, @NotNull HttpStatusCode status,
+                      @NotNull Map<String, String> headers, byte[] body, boolean isHeadRequest) throws IOException {
+        write(out, status.getStatusLine(), headers, body, isHeadRequest);
+    }
+
+    private void write(@NotNull OutputStream out, byte[] statusLine,
+                       @NotNull Map<String, String> headers, byte[] body, boolean isHeadRequest) throws IOException {
+        int bodyLength = encodeHead(statusLine, headers, body, isHeadRequest);
+
+        if (bodyLength > 0 && bodyLength <= COALESCE_LIMIT) {
+            ensureCapacity(this.length + bodyLength);
+            System.arraycopy(body, 0, this.buffer, this.length, bodyLength);
+
+            out.write(this.buffer, 0, this.length + bodyLength);
+        } else {
+            out.write(this.buffer, 0, this.length);
+
+            if (bodyLength > 0) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Encodes the response for a gathering write.
+     * <br><br>
+     * The returned head is backed by this writer's buffer and must be written before the next response is encoded.
+     *
+     * @return The encoded head, followed by the body (if any)
+     */
+    public ByteBuffer[] encode(@NotNull HttpStatusCode status,
+                               @NotNull Map<String, String> headers, byte[] body, boolean isHeadRequest) {
+        int bodyLength = encodeHead(status.getStatusLine(), headers, body, isHeadRequest);
+
+        ByteBuffer head = ByteBuffer.wrap(this.buffer, 0, this.length);
+
+        if (bodyLength > 0) {
+            return new ByteBuffer[] {head, ByteBuffer.wrap(body)};
+        }
+
+        return new ByteBuffer[] {head};
+    }
+
+    /**
+     * @return The number of body bytes that should be sent after the head
+     */
+    private int encodeHead(byte[] statusLine, @NotNull Map<String, String> headers,
+                           byte[] body, boolean isHeadRequest) {
+        this.length = 0;
+
+        writeBytes(statusLine);
+
+        boolean hasContentLength = false;
+
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            String field = entry.getKey();
+            String value = entry.getValue();
+
+            if (!hasContentLength && field.equals("content-length")) {
+                hasContentLength = true;
+            }
+
+            byte[] line = this.staticHeaders != null ? this.staticHeaders.getLine(field, value) : null;
+
+            if (line == null && field.equals("date")) {
+                line = HttpDate.getLine(value);
+            }
+
+            if (line != null) {
+                writeBytes(line);
+            } else {
+                writeBytes(getHeaderName(field));
+                writeAscii(value);
+                writeBytes(CRLF);
+            }
+        }
+
+        // Set Content-Length header if not set already
+        if (!hasContentLength && body != null && body.length > 0) {
+            writeBytes(CONTENT_LENGTH);
+            writeAscii(String.valueOf(body.length));
+            writeBytes(CRLF);
+        }
+
+        writeBytes(CRLF);
+
+        return isHeadRequest || body == null ? 0 : body.length;
+    }
+
+    /**
+     * Writes the given String, assuming it only contains ASCII characters and falling back to UTF-8 if it doesn't
+     */
+    private void writeAscii(@NotNull String str) {
+        int start = this.length;
+        ensureCapacity(start + str.length());
+
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+
+            if (c >= 0x80) {
+                this.length = start;
+                writeBytes(str.getBytes(StandardCharsets.UTF_8));
+
+                return;
+            }
+
+            this.buffer[this.length++] = (byte) c;
+        }
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(this.length + bytes.length);
+
+        System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+        this.length += bytes.length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (this.buffer.length < capacity) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(capacity, this.buffer.length * 2));
+        }
+    }
+
+    private static byte[] encodeStatusLine(int statusCode, @NotNull String statusMsg) {
+        return ("HTTP/1.1 " + statusCode + " " + statusMsg + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param field A lower case header field
+     *
+     * @return The formatted header field followed by {@code ": "}
+     */
+    private static byte[] getHeaderName(@NotNull String field) {
+        byte[] result = HEADER_NAMES.get(field);
+
+        if (result == null) {
+            result = (HttpUtils.formatHeaderField(field) + ": ").getBytes(StandardCharsets.UTF_8);
+
+            // Don't let clients fill the cache with arbitrary header fields (e.g. reflected by a route)
+            if (HEADER_NAMES.size() < MAX_CACHED_HEADER_NAMES) {
+                HEADER_NAMES.put(field, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Encodes the given header fields once, so they can be reused for every response.
+     *
+     * @param headers Lower case header fields and their values
+     */
+    public static @NotNull StaticHeaders encodeStaticHeaders(@NotNull Map<String, String> headers) {
+        return new StaticHeaders(headers);
+    }
+
+    public static final class StaticHeaders {
+        private final String[] fields;
+        private final String[] values;
+        private final byte[][] lines;
+
+        private StaticHeaders(@NotNull Map<String, String> headers) {
+            this.fields = new String[headers.size()];
+            this.values = new String[headers.size()];
+            this.lines = new byte[headers.size()][];
+
+            int i = 0;
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                this.fields[i] = entry.getKey();
+                this.values[i] = entry.getValue();
+                this.lines[i] = (HttpUtils.formatHeaderField(entry.getKey()) + ": " + entry.getValue() + "\r\n")
+                        .getBytes(StandardCharsets.UTF_8);
+
+                ++i;
+            }
+        }
+
+        /**
+         * Responses copy the default headers, so an unchanged header field still references the very same
+         * String instances. This allows checking for identity instead of comparing the Strings.
+         *
+         * @return The encoded line or {@code null} if the header field is not known or has been changed
+         */
+        private byte[] getLine(@NotNull String field, @NotNull String value) {
+            for (int i = 0; i < this.fields.length; ++i) {
+                if (this.fields[i] == field && this.values[i] == value) {
+                    return this.lines[i];
+                }
+            }
+
+            return null;
+        }
+    }
+}
@@ -4,29 +4,42 @@ import de.sprax2013.hems.webserver.HttpStatusCode;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.nio.file.Path;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.zip.Deflater;
 
 public class HttpUtils {
     private HttpUtils() {
         throw new IllegalStateException("Utility class");
     }
 
+    /**
+     * @see HttpPath#normalize(String)
+     */
     public static String normalizeToRootPath(@NotNull String path) {
-        return Path.of("/", Objects.requireNonNull(path)).normalize().toString();
+        return HttpPath.normalize(Objects.requireNonNull(path));
     }
 
     public static @NotNull String formatHeaderField(@NotNull String field) {
+        if (field.equalsIgnoreCase("etag")) {
+            return "ETag";  // The only common field that is not just capitalized words
+        }
+
         StringBuilder result = new StringBuilder();
 
         for (String s : field.toLowerCase().split("-")) {
@@ -41,68 +54,203 @@ public class HttpUtils {
         return result.toString();
     }
 
-    public static byte[] readHttpHeaderLine(@NotNull InputStream in) throws IOException, HttpProtocolException {
-        byte[] buffer = new byte[128];
-        int i = 0;
-
-        while (true) {
-            byte b;
-            if ((b = (byte) in.read()) != -1) {
-                if (i + 1 >= buffer.length) {
-                    int newLength = buffer.length * 2;
-
-                    if (newLength > 4096) throw new HttpProtocolException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
+    /**
+     * Parses {@code application/x-www-form-urlencoded} data, like a query string.
+     * Keys are lower case and may occur multiple times.
+     *
+     * @param data The encoded data (e.g. {@code a=1&b=2&a=3})
+     *
+     * @return All keys and their values in order of appearance
+     */
+    public static @NotNull Map<String, List<String>> parseUrlEncoded(@NotNull String data) {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+
+        int start = 0;
+        while (start <= data.length()) {
+            int end = data.indexOf('&', start);
+            if (end == -1) {
+                end = data.length();
+            }
 
-                    buffer = Arrays.copyOf(buffer, newLength);
+            if (end > start) {
+                int dividerIndex = data.indexOf('=', start);
+                if (dividerIndex == -1 || dividerIndex > end) {
+                    dividerIndex = end;
                 }
 
-                buffer[i++] = b;
+                // FIXME: A URIDecode should be used. URLDecoder may produce wrong output for this kind of input,
+                //        but Java does not have one - Using URLDecoder for now
+                String key = URLDecoder.decode(data.substring(start, dividerIndex), StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+                String value = dividerIndex < end ?
+                        URLDecoder.decode(data.substring(dividerIndex + 1, end), StandardCharsets.UTF_8) : "";
 
-                if (b == 10 && buffer[i - 2] == 13) {
-                    break;
-                }
+                result.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value);
             }
+
+            start = end + 1;
         }
 
-        return Arrays.copyOf(buffer, i - 1);    // Remove "\r\n" and trailing nulls
+        return result;
     }
 
-    public static void writeHttpResponse(@NotNull OutputStream out, int statusCode, @NotNull String statusMsg,
-                                         @NotNull Map<String, String> headers, byte[] body, boolean isHeadRequest) throws IOException {
-        writeLineCRLF(out, "HTTP/1.1 " + statusCode + " " + statusMsg);
+    /**
+     * Negotiates the content-coding using the q-values of the request's {@code Accept-Encoding} header (RFC 7231, section 5.3.4).
+     * Codings with {@code q=0} are never chosen, {@code *} applies to all codings not listed explicitly.
+     * If the client prefers both codings equally, {@code gzip} is chosen.
+     *
+     * @param acceptEncoding The value of the request's {@code Accept-Encoding} header
+     *
+     * @return The supported content-coding the client prefers ({@code gzip} or {@code deflate}) or {@code null} for none
+     */
+    public static @Nullable String selectContentEncoding(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+
+        int start = 0;
+        while (start < acceptEncoding.length()) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end == -1) {
+                end = acceptEncoding.length();
+            }
+
+            int paramStart = acceptEncoding.indexOf(';', start);
+            if (paramStart == -1 || paramStart > end) {
+                paramStart = end;
+            }
+
+            String coding = acceptEncoding.substring(start, paramStart).trim().toLowerCase(Locale.ROOT);
+            float q = parseQValue(acceptEncoding, paramStart, end);
+
+            if (q >= 0) {
+                switch (coding) {
+                    case "gzip":
+                    case "x-gzip":
+                        gzip = Math.max(gzip, q);
+                        break;
+                    case "deflate":
+                        deflate = Math.max(deflate, q);
+                        break;
+                    case "*":
+                        any = q;
+                        break;
+                    default:
+                        break;
+                }
+            }
 
-        // Set Content-Length header if not set already
-        if (body != null && body.length > 0 && !headers.containsKey("content-length")) {
-            headers = new LinkedHashMap<>(headers);
-            headers.put("content-length", String.valueOf(body.length));
+            start = end + 1;
         }
 
-        // Send header
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            writeLineCRLF(out, formatHeaderField(entry.getKey()) + ": " + entry.getValue());
+        if (gzip == -1) gzip = any;
+        if (deflate == -1) deflate = any;
+
+        if (gzip > 0 && gzip >= deflate) return "gzip";
+        if (deflate > 0) return "deflate";
+
+        return null;
+    }
+
+    /**
+     * @param encoding {@code gzip} or {@code deflate}
+     * @param level    The compression level (see {@link Deflater#setLevel(int)})
+     *
+     * @return The compressed data or {@code null} if it would not be smaller than {@code data}
+     */
+    public static @Nullable byte[] compress(byte[] data, @NotNull String encoding, int level) {
+        Compressor compressor = Compressor.acquire(encoding, level);
+
+        try {
+            return compressor.compress(data, data.length - 1);
+        } finally {
+            compressor.release();
         }
+    }
 
-        // Send body
-        writeLineCRLF(out, null);
+    /**
+     * @return The q-value of the parameters between {@code start} and {@code end} ({@code 1} if there is none)
+     * or {@code -1} if it is invalid
+     */
+    private static float parseQValue(@NotNull String s, int start, int end) {
+        while (start < end) {
+            int paramEnd = s.indexOf(';', start + 1);
+            if (paramEnd == -1 || paramEnd > end) {
+                paramEnd = end;
+            }
 
-        if (!isHeadRequest && body != null && body.length > 0) {
-            out.write(body);
+            String param = s.substring(start + 1, paramEnd).trim();
+
+            if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                try {
+                    float q = Float.parseFloat(param.substring(2));
+
+                    return q >= 0 && q <= 1 ? q : -1;
+                } catch (NumberFormatException ignore) {
+                    return -1;
+                }
+            }
+
+            start = paramEnd;
         }
+
+        return 1;
     }
 
-    private static void writeLineCRLF(@NotNull OutputStream out, @Nullable String str) throws IOException {
-        if (str != null) {
-            out.write(str.getBytes());
+    /**
+     * @deprecated Reads byte by byte and is no longer used - Requests are parsed by {@link HttpRequestParser}
+     */
+    @Deprecated
+    public static byte[] readHttpHeaderLine(@NotNull InputStream in) throws IOException, HttpProtocolException {
+        byte[] buffer = new byte[128];
+        int i = 0;
+
+        while (true) {
+            int b;
+
+            try {
+                b = in.read();
+            } catch (SocketTimeoutException ignore) {
+                throw new HttpProtocolException(HttpStatusCode.REQUEST_TIME_OUT);
+            }
+
+            if (b == -1) {
+                throw new EOFException("Connection closed while reading a header line");
+            }
+
+            if (i + 1 >= buffer.length) {
+                int newLength = buffer.length * 2;
+
+                if (newLength > 4096) throw new HttpProtocolException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
+
+                buffer = Arrays.copyOf(buffer, newLength);
+            }
+
+            buffer[i++] = (byte) b;
+
+            if (b == 10 && i > 1 && buffer[i - 2] == 13) {
+                break;
+            }
         }
 
-        out.write("\r\n".getBytes());
+        return Arrays.copyOf(buffer, i - 1);    // Remove "\r\n" and trailing nulls
+    }
+
+    /**
+     * @deprecated Encodes the default headers on every call and is no longer used - Use a reused {@link HttpResponseWriter} instead
+     */
+    @Deprecated
+    public static void writeHttpResponse(@NotNull OutputStream out, int statusCode, @NotNull String statusMsg,
+                                         @NotNull Map<String, String> headers, byte[] body, boolean isHeadRequest) throws IOException {
+        new HttpResponseWriter(null).write(out, statusCode, statusMsg, headers, body, isHeadRequest);
     }
 
     public static List<byte[]> split(byte[] input, byte[] pattern) {
         List<byte[]> result = new LinkedList<>();
 
         int start = -1;
-        for (int i = 0; i < input.length; ++i) {
+        for (int i = 0; i <= input.length - pattern.length; ++i) {
             boolean isMatch = true;
 
             for (int j = 0; j < pattern.length; ++j) {
@@ -128,6 +276,10 @@ public class HttpUtils {
         return result;
     }
 
+    /**
+     * @deprecated Reads the whole range into memory and is limited to 2 GiB - Use {@link FileRegion} to stream it instead
+     */
+    @Deprecated
     public static byte[] readByteRange(File file, long start, int length) throws IOException {
         try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
             if (length == -1) {
@@ -141,4 +293,4 @@ public class HttpUtils {
             return result;
         }
     }
-}
\ No newline at end of file
+}
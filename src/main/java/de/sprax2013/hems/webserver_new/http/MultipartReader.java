@@ -0,0 +1,504 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import de.sprax2013.hems.webserver.HttpStatusCode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the parts of a {@code multipart/form-data} request body (RFC 7578) one after another,
+ * while the body is being received.
+ * <br><br>
+ * Part boundaries are found using Boyer-Moore-Horspool, so most body bytes are skipped instead of being compared.
+ * Only a small buffer is held in memory. Large parts can be spooled to temporary files
+ * (see {@link Part#spool(int)}), which are deleted once the response has been sent.
+ */
+public class MultipartReader implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PART_HEAD_SIZE = 8 * 1024;
+
+    private final InputStream in;
+
+    /**
+     * {@code \r\n--} followed by the boundary
+     */
+    private final byte[] delimiter;
+    private final int[] skipTable = new int[256];
+
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    /**
+     * Index of the next delimiter in the buffer, {@code -1} if there is none or {@code -2} if not searched yet
+     */
+    private int delimiterIndex = -2;
+
+    private Part currentPart;
+    private boolean finished;
+
+    private List<Path> tempFiles;
+
+    /**
+     * @param req The request to read the body of
+     *
+     * @throws HttpProtocolException if the request is not {@code multipart/form-data} (415) or has an invalid boundary (400)
+     */
+    public MultipartReader(@NotNull WebRequest req) throws HttpProtocolException {
+        this(req.getRequestBody().getInputStream(), getBoundary(req.getHeader("Content-Type")));
+
+        req.onEvent(RequestEvent.CLIENT_DISCONNECTED, (eReq, eRes) -> close());
+    }
+
+    /**
+     * The reader has to be closed, to delete temporary files created by {@link Part#spool(int)}.
+     *
+     * @param in       The body to read
+     * @param boundary The boundary separating the parts (without the leading dashes)
+     */
+    public MultipartReader(@NotNull InputStream in, @NotNull String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+
+        // Boyer-Moore-Horspool: How far the search window may be moved, based on its last byte
+        Arrays.fill(this.skipTable, this.delimiter.length);
+        for (int i = 0; i < this.delimiter.length - 1; ++i) {
+            this.skipTable[this.delimiter[i] & 0xFF] = this.delimiter.length - 1 - i;
+        }
+
+        this.buffer = new byte[Math.max(BUFFER_SIZE, this.delimiter.length * 2)];
+
+        // The first delimiter does not need to be preceded by a CRLF - Pretend it is, so it is found like any other
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.limit = 2;
+
+        // Anything in front of the first delimiter is a preamble that is skipped like the body of a part
+        this.currentPart = new Part(Collections.emptyMap());
+    }
+
+    /**
+     * Skips whatever has not been read of the current part and returns the next one.
+     *
+     * @return The next part or {@code null}, if there are no parts left
+     */
+    public @Nullable Part nextPart() throws IOException, HttpProtocolException {
+        if (this.finished) return null;
+
+        this.currentPart.skip();
+
+        // Skip the delimiter and check whether it is the last one (followed by "--")
+        if (!ensureBuffered(this.delimiter.length + 2)) {
+            throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+        }
+
+        this.pos += this.delimiter.length;
+        this.delimiterIndex = -2;
+
+        if (this.buffer[this.pos] == '-' && this.buffer[this.pos + 1] == '-') {
+            this.finished = true;
+            return null;
+        }
+
+        this.currentPart = new Part(readPartHead());
+
+        return this.currentPart;
+    }
+
+    private Map<String, String> readPartHead() throws IOException, HttpProtocolException {
+        int headEnd;
+        int scanFrom = this.pos;
+
+        // Parts without header fields are directly followed by an empty line, which is found as well
+        while ((headEnd = HttpRequestParser.indexOfHeadEnd(this.buffer, scanFrom, this.limit)) == -1) {
+            if (this.limit - this.pos >= MAX_PART_HEAD_SIZE) {
+                throw new HttpProtocolException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
+            }
+
+            int scannedBytes = Math.max(0, this.limit - this.pos - 3);
+
+            if (!fill()) {
+                throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+            }
+
+            scanFrom = this.pos + scannedBytes;
+        }
+
+        String head = new String(this.buffer, this.pos, headEnd - this.pos, StandardCharsets.UTF_8);
+        this.pos = headEnd;
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String[] lines = head.split("\r\n");
+
+        // The first line is the remainder of the delimiter line (optional whitespace)
+        for (int i = 1; i < lines.length; ++i) {
+            int colon = lines[i].indexOf(':');
+
+            if (colon <= 0) {
+                throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+            }
+
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+
+        return headers;
+    }
+
+    /**
+     * @return The index of the next delimiter within the buffered bytes or {@code -1}
+     */
+    private int indexOfDelimiter() {
+        int last = this.delimiter.length - 1;
+
+        for (int i = this.pos; i + last < this.limit; i += this.skipTable[this.buffer[i + last] & 0xFF]) {
+            int j = last;
+
+            while (this.buffer[i + j] == this.delimiter[j]) {
+                if (j == 0) return i;
+
+                --j;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads part body bytes until the next delimiter
+     */
+    private int readPartBody(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            if (this.delimiterIndex == -2) {
+                this.delimiterIndex = indexOfDelimiter();
+            }
+
+            int available;
+
+            if (this.delimiterIndex != -1) {
+                available = this.delimiterIndex - this.pos;
+
+                if (available == 0) return -1;
+            } else {
+                // The end of the buffer might be the start of a delimiter
+                available = this.limit - this.pos - (this.delimiter.length - 1);
+
+                if (available <= 0) {
+                    if (!fill()) {
+                        throw new EOFException("Multipart body ended without a closing delimiter");
+                    }
+
+                    continue;
+                }
+            }
+
+            int n = Math.min(len, available);
+            System.arraycopy(this.buffer, this.pos, b, off, n);
+            this.pos += n;
+
+            return n;
+        }
+    }
+
+    private boolean ensureBuffered(int count) throws IOException {
+        while (this.limit - this.pos < count) {
+            if (!fill()) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads more data behind them
+     *
+     * @return false, if the body ended
+     */
+    private boolean fill() throws IOException {
+        if (this.eof) return false;
+
+        if (this.pos > 0) {
+            System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+
+            if (this.delimiterIndex >= 0) {
+                this.delimiterIndex -= this.pos;
+            }
+
+            this.limit -= this.pos;
+            this.pos = 0;
+        }
+
+        if (this.delimiterIndex == -1) {
+            this.delimiterIndex = -2;   // The new data may contain a delimiter
+        }
+
+        if (this.limit == this.buffer.length) {
+            throw new IOException("Multipart buffer is full");   // Can't happen, as part heads are limited in size
+        }
+
+        int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+
+        if (n == -1) {
+            this.eof = true;
+            return false;
+        }
+
+        this.limit += n;
+
+        return true;
+    }
+
+    /**
+     * Deletes all temporary files created by {@link Part#spool(int)}
+     */
+    @Override
+    public void close() {
+        if (this.tempFiles != null) {
+            for (Path file : this.tempFiles) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            this.tempFiles = null;
+        }
+    }
+
+    /**
+     * @param contentType The value of the {@code Content-Type} header field
+     *
+     * @return The boundary parameter
+     */
+    static @NotNull String getBoundary(@Nullable String contentType) throws HttpProtocolException {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            throw new HttpProtocolException(HttpStatusCode.UNSUPPORTED_MEDIA_TYPE);
+        }
+
+        String boundary = getParameter(contentType, "boundary");
+
+        // RFC 2046, section 5.1.1
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+            throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+        }
+
+        return boundary;
+    }
+
+    /**
+     * @return The value of a parameter like {@code name="value"} in a header field value (e.g. Content-Disposition)
+     */
+    static @Nullable String getParameter(@NotNull String headerValue, @NotNull String name) {
+        for (String param : headerValue.split(";")) {
+            int equals = param.indexOf('=');
+
+            if (equals != -1 && param.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                String value = param.substring(equals + 1).trim();
+
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * A single part of the body, valid until {@link #nextPart()} is called.
+     */
+    public final class Part {
+        private final Map<String, String> headers;
+        private final InputStream stream = new PartInputStream();
+
+        private Part(@NotNull Map<String, String> headers) {
+            this.headers = headers;
+        }
+
+        /**
+         * @return The lower case header fields of this part
+         */
+        public @NotNull Map<String, String> getHeaders() {
+            return Collections.unmodifiableMap(this.headers);
+        }
+
+        public @Nullable String getHeader(@NotNull String field) {
+            return this.headers.get(field.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * @return The name of the form field or {@code null} if not set
+         */
+        public @Nullable String getName() {
+            String disposition = getHeader("Content-Disposition");
+
+            return disposition != null ? getParameter(disposition, "name") : null;
+        }
+
+        /**
+         * @return The name of the uploaded file or {@code null}, if this part is not a file
+         */
+        public @Nullable String getFileName() {
+            String disposition = getHeader("Content-Disposition");
+
+            return disposition != null ? getParameter(disposition, "filename") : null;
+        }
+
+        public @NotNull String getContentType() {
+            String contentType = getHeader("Content-Type");
+
+            return contentType != null ? contentType : "text/plain";
+        }
+
+        /**
+         * @return A stream reading this part's body, ending at the next boundary
+         */
+        public @NotNull InputStream getInputStream() {
+            return this.stream;
+        }
+
+        /**
+         * Reads the rest of this part into memory, or into a temporary file if it is larger than {@code maxInMemory} bytes.
+         * Temporary files are deleted when the reader is closed, which happens once the response has been sent
+         * if the reader has been created for a {@link WebRequest}.
+         *
+         * @param maxInMemory The number of bytes that may be held in memory
+         */
+        public @NotNull SpooledPart spool(int maxInMemory) throws IOException {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(Math.min(maxInMemory, 8192));
+            byte[] chunk = new byte[8192];
+            int n;
+
+            while ((n = this.stream.read(chunk)) != -1) {
+                if (bOut.size() + n > maxInMemory) {
+                    Path file = Files.createTempFile("hems-upload-", ".tmp");
+
+                    if (MultipartReader.this.tempFiles == null) {
+                        MultipartReader.this.tempFiles = new ArrayList<>(1);
+                    }
+                    MultipartReader.this.tempFiles.add(file);
+
+                    try (OutputStream fOut = Files.newOutputStream(file)) {
+                        bOut.writeTo(fOut);
+                        fOut.write(chunk, 0, n);
+
+                        this.stream.transferTo(fOut);
+                    }
+
+                    return new SpooledPart(this.headers, null, file);
+                }
+
+                bOut.write(chunk, 0, n);
+            }
+
+            return new SpooledPart(this.headers, bOut.toByteArray(), null);
+        }
+
+        private void skip() throws IOException {
+            byte[] skipBuffer = new byte[4096];
+
+            //noinspection StatementWithEmptyBody
+            while (this.stream.read(skipBuffer) != -1) ;
+        }
+
+        private final class PartInputStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+
+                return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (Part.this != MultipartReader.this.currentPart) {
+                    throw new IOException("The reader already moved on to the next part");
+                }
+
+                if (len == 0) return 0;
+
+                return readPartBody(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * A part that has been read completely, either into memory or into a temporary file.
+     */
+    public static final class SpooledPart {
+        private final Map<String, String> headers;
+        private final byte[] data;
+        private final Path file;
+
+        private SpooledPart(@NotNull Map<String, String> headers, byte[] data, @Nullable Path file) {
+            this.headers = headers;
+            this.data = data;
+            this.file = file;
+        }
+
+        public @Nullable String getHeader(@NotNull String field) {
+            return this.headers.get(field.toLowerCase(Locale.ROOT));
+        }
+
+        public @Nullable String getName() {
+            String disposition = getHeader("Content-Disposition");
+
+            return disposition != null ? getParameter(disposition, "name") : null;
+        }
+
+        public @Nullable String getFileName() {
+            String disposition = getHeader("Content-Disposition");
+
+            return disposition != null ? getParameter(disposition, "filename") : null;
+        }
+
+        public boolean isInMemory() {
+            return this.file == null;
+        }
+
+        /**
+         * @return The temporary file holding the part's body or {@code null} if it is held in memory
+         */
+        public @Nullable Path getFile() {
+            return this.file;
+        }
+
+        public long getSize() throws IOException {
+            return this.file == null ? this.data.length : Files.size(this.file);
+        }
+
+        public @NotNull InputStream getInputStream() throws IOException {
+            return this.file == null ? new ByteArrayInputStream(this.data) : Files.newInputStream(this.file);
+        }
+
+        /**
+         * @return The part's body as String, decoded using UTF-8
+         */
+        public @NotNull String getString() throws IOException {
+            if (this.file == null) {
+                return new String(this.data, StandardCharsets.UTF_8);
+            }
+
+            return Files.readString(this.file, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import de.sprax2013.hems.webserver.HttpStatusCode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport used by {@link HemsWebServer} in {@link TransportMode#NIO}.
+ * <br><br>
+ * A single acceptor thread hands new connections to a fixed number of event loops. Each event loop reads
+ * requests incrementally into a per-connection buffer and calls the router as soon as a request is complete.
+ * Routes are called on the event-loop thread, so a slow route delays the other connections of the same loop.
+ */
+class NioTransport implements Closeable {
+    /**
+     * Request bodies are buffered completely before calling the router, so their size is limited
+     */
+    static final int MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The initial size of a connection's read buffer, it is shrunk back to it after a large request has been consumed
+     */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final HemsWebServer server;
+
+    private final ServerSocketChannel srv;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService pool;
+
+    /**
+     * Connections with data ready to be processed, that are waiting for their event loop to get to them
+     */
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+
+    NioTransport(@NotNull HemsWebServer server, int port, int eventLoopCount) throws IOException {
+        this.server = server;
+
+        this.srv = ServerSocketChannel.open();
+        this.srv.bind(new InetSocketAddress(port));
+
+        this.eventLoops = new EventLoop[eventLoopCount];
+        this.pool = Executors.newFixedThreadPool(eventLoopCount + 1);
+
+        for (int i = 0; i < eventLoopCount; ++i) {
+            this.eventLoops[i] = new EventLoop();
+            this.pool.execute(this.eventLoops[i]);
+        }
+
+        this.pool.execute(this::acceptConnections);
+    }
+
+    int getPort() {
+        return this.srv.socket().getLocalPort();
+    }
+
+    int getQueuedConnections() {
+        return this.queuedConnections.get();
+    }
+
+    boolean isOpen() {
+        return this.srv.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.srv.close();
+
+        for (EventLoop loop : this.eventLoops) {
+            loop.selector.close();
+        }
+
+        this.pool.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        int nextLoop = 0;
+
+        while (this.srv.isOpen()) {
+            try {
+                SocketChannel client = this.srv.accept();
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                this.eventLoops[nextLoop].register(client);
+                nextLoop = (nextLoop + 1) % this.eventLoops.length;
+            } catch (ClosedChannelException ignore) {
+                break;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+
+        private EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(@NotNull SocketChannel client) {
+            this.pendingChannels.add(client);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextIdleCheck = System.currentTimeMillis() + 1000;
+
+            while (this.selector.isOpen()) {
+                try {
+                    this.selector.select(1000);
+
+                    SocketChannel client;
+                    while ((client = this.pendingChannels.poll()) != null) {
+                        SelectionKey key = client.register(this.selector, SelectionKey.OP_READ);
+                        key.attach(new Connection(client, key));
+                    }
+
+                    // Ready connections wait for the ones before them, which counts as load
+                    int waiting = this.selector.selectedKeys().size();
+                    NioTransport.this.queuedConnections.addAndGet(waiting);
+
+                    try {
+                        Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                        while (it.hasNext()) {
+                            SelectionKey key = it.next();
+                            it.remove();
+
+                            --waiting;
+                            NioTransport.this.queuedConnections.decrementAndGet();
+
+                            Connection con = (Connection) key.attachment();
+
+                            try {
+                                if (key.isValid() && key.isReadable()) {
+                                    con.onReadable();
+                                }
+
+                                if (key.isValid() && key.isWritable()) {
+                                    con.flush();
+                                }
+                            } catch (IOException ignore) {
+                                con.close();    // Client disconnected or reset the connection
+                            }
+                        }
+                    } finally {
+                        NioTransport.this.queuedConnections.addAndGet(-waiting);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextIdleCheck) {
+                        nextIdleCheck = now + 1000;
+
+                        for (SelectionKey key : this.selector.keys()) {
+                            ((Connection) key.attachment()).closeIfIdle(now);
+                        }
+                    }
+                } catch (ClosedSelectorException ignore) {
+                    break;
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String remoteHost;
+
+        private final HttpResponseWriter writer = server.newResponseWriter();
+
+        /**
+         * The response currently being written, its head is backed by {@link #writer}
+         */
+        private ByteBuffer[] pendingWrite;
+
+        /**
+         * The file body currently being sent after {@link #pendingWrite}
+         */
+        private FileChannel pendingFile;
+        private long pendingFilePosition;
+        private long pendingFileEnd;
+
+        /**
+         * Kept in write mode between reads
+         */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private int scannedBytes;
+
+        private WebRequest pendingRequest;
+        private int pendingBodyLength;
+
+        private int requestCount;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean closeAfterWrite;
+
+        private Connection(@NotNull SocketChannel channel, @NotNull SelectionKey key) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.remoteHost = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        void onReadable() throws IOException {
+            if (!this.readBuffer.hasRemaining()) {
+                ensureCapacity(this.readBuffer.capacity() * 2);
+            }
+
+            if (this.channel.read(this.readBuffer) == -1) {
+                close();
+                return;
+            }
+
+            this.lastActivity = System.currentTimeMillis();
+
+            processRequests();
+        }
+
+        /**
+         * Dispatches all complete requests in the read buffer, one after another.
+         * Pipelined requests are only processed once the previous response has been written completely.
+         */
+        private void processRequests() throws IOException {
+            while (!isWriting() && !this.closeAfterWrite) {
+                byte[] buffer = this.readBuffer.array();
+                int received = this.readBuffer.position();
+
+                if (this.pendingRequest == null) {
+                    if (received == 0) return;
+
+                    int headEnd;
+
+                    try {
+                        HttpRequestParser.checkFirstByte(buffer[0]);
+
+                        headEnd = HttpRequestParser.indexOfHeadEnd(buffer, Math.max(0, this.scannedBytes - 3), received);
+
+                        if (headEnd == -1) {
+                            this.scannedBytes = received;
+
+                            if (received >= HttpRequestParser.MAX_HEAD_SIZE) {
+                                throw new HttpProtocolException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
+                            }
+
+                            return;
+                        }
+
+                        this.pendingRequest = HttpRequestParser.parseHead(this.remoteHost, Arrays.copyOf(buffer, headEnd));
+                        long bodyLength = HttpRequestParser.getBodyLength(this.pendingRequest);
+
+                        if (bodyLength > MAX_BODY_SIZE) {
+                            throw new HttpProtocolException(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
+                        }
+
+                        this.pendingBodyLength = (int) bodyLength;
+                    } catch (Exception ex) {
+                        send(null, server.createErrorResponse(ex));
+                        return;
+                    }
+
+                    consume(headEnd);
+
+                    if (this.readBuffer.position() < this.pendingBodyLength &&
+                            "100-continue".equalsIgnoreCase(this.pendingRequest.getHeader("Expect"))) {
+                        // The client waits for it before sending the body (a body that is too large has been rejected above)
+                        this.pendingWrite = new ByteBuffer[] {ByteBuffer.wrap(RequestBody.CONTINUE_RESPONSE)};
+                        flush();
+                    }
+
+                    continue;
+                }
+
+                if (received < this.pendingBodyLength) {
+                    ensureCapacity(this.pendingBodyLength);
+                    return;
+                }
+
+                WebRequest req = this.pendingRequest;
+                this.pendingRequest = null;
+
+                if (this.pendingBodyLength > 0) {
+                    req.setBody(Arrays.copyOf(buffer, this.pendingBodyLength));
+                    consume(this.pendingBodyLength);
+                }
+
+                send(req, server.handleRequest(req, false, true, ++this.requestCount));
+            }
+        }
+
+        /**
+         * Removes the given number of bytes from the start of the read buffer
+         */
+        private void consume(int length) {
+            this.readBuffer.flip();
+            this.readBuffer.position(length);
+
+            if (this.readBuffer.capacity() > READ_BUFFER_SIZE && this.readBuffer.remaining() <= READ_BUFFER_SIZE) {
+                // Don't keep the buffer a large body has been read into for the rest of the connection
+                ByteBuffer newBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                newBuffer.put(this.readBuffer);
+
+                this.readBuffer = newBuffer;
+            } else {
+                this.readBuffer.compact();
+            }
+
+            this.scannedBytes = 0;
+        }
+
+        private void send(@Nullable WebRequest req, @NotNull WebResponse res) throws IOException {
+            try {
+                boolean streamed = server.isStreamed(req, res);
+
+                if (streamed) {
+                    // Only BodyWriters are streamed here (files are never compressed on the event loop),
+                    // they block the event loop just like the route that produces them
+                    try (BlockingChannelOutputStream out = new BlockingChannelOutputStream(this.channel, server.getKeepAliveTimeout())) {
+                        server.writeResponse(this.writer, out, null, req, res);
+                    }
+                } else {
+                    this.pendingWrite = server.encodeResponse(this.writer, req, res);
+                }
+
+                FileRegion file = res.getFile();
+                if (file != null && !streamed && !HemsWebServer.isHeadRequest(req)) {
+                    this.pendingFile = file.open();
+                    this.pendingFilePosition = file.getOffset();
+                    this.pendingFileEnd = file.getOffset() + file.getLength();
+                }
+            } finally {
+                if (req != null) {
+                    req.callEvent(RequestEvent.CLIENT_DISCONNECTED, res);
+                }
+            }
+
+            if (HemsWebServer.isConnectionClose(res)) {
+                this.closeAfterWrite = true;
+            }
+
+            flush();
+        }
+
+        void flush() throws IOException {
+            if (this.pendingWrite != null) {
+                // Gathering write, so head and body usually leave in a single syscall
+                this.channel.write(this.pendingWrite);
+
+                if (this.pendingWrite[this.pendingWrite.length - 1].hasRemaining()) {
+                    // Socket buffer is full - Stop reading new requests until the client caught up
+                    this.key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                this.pendingWrite = null;
+                this.lastActivity = System.currentTimeMillis();
+            }
+
+            if (this.pendingFile != null) {
+                while (this.pendingFilePosition < this.pendingFileEnd) {
+                    long transferred = this.pendingFile.transferTo(this.pendingFilePosition,
+                            this.pendingFileEnd - this.pendingFilePosition, this.channel);
+
+                    if (transferred == 0) {
+                        if (this.pendingFilePosition >= this.pendingFile.size()) {
+                            throw new EOFException("File has been truncated while sending it");
+                        }
+
+                        this.key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+
+                    this.pendingFilePosition += transferred;
+                    this.lastActivity = System.currentTimeMillis();
+                }
+
+                closePendingFile();
+            }
+
+            if (this.closeAfterWrite) {
+                close();
+                return;
+            }
+
+            if (this.key.interestOps() != SelectionKey.OP_READ) {
+                this.key.interestOps(SelectionKey.OP_READ);
+
+                processRequests();  // Pipelined requests may have been received in the meantime
+            }
+        }
+
+        private boolean isWriting() {
+            return this.pendingWrite != null || this.pendingFile != null;
+        }
+
+        private void closePendingFile() {
+            if (this.pendingFile != null) {
+                try {
+                    this.pendingFile.close();
+                } catch (IOException ignore) {
+                    // Nothing we could do about it
+                }
+
+                this.pendingFile = null;
+            }
+        }
+
+        void closeIfIdle(long now) {
+            if (now - this.lastActivity < server.getKeepAliveTimeout()) return;
+
+            if (!isWriting() && !this.closeAfterWrite &&
+                    (this.readBuffer.position() > 0 || this.pendingRequest != null)) {
+                try {
+                    send(null, server.createErrorResponse(new HttpProtocolException(HttpStatusCode.REQUEST_TIME_OUT)));
+                } catch (IOException ignore) {
+                    // Closing the connection anyway
+                }
+            }
+
+            close();
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (this.readBuffer.capacity() < capacity) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+
+                this.readBuffer.flip();
+                newBuffer.put(this.readBuffer);
+
+                this.readBuffer = newBuffer;
+            }
+        }
+
+        void close() {
+            this.key.cancel();
+            closePendingFile();
+
+            try {
+                this.channel.close();
+            } catch (IOException ignore) {
+                // Nothing we could do about it
+            }
+        }
+    }
+
+    /**
+     * Writes to a non-blocking channel, waiting until the client caught up whenever the socket buffer is full
+     */
+    private static final class BlockingChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+        private final int timeout;
+
+        private Selector selector;
+
+        private BlockingChannelOutputStream(@NotNull SocketChannel channel, int timeout) {
+            this.channel = channel;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+
+            while (buffer.hasRemaining()) {
+                if (this.channel.write(buffer) == 0) {
+                    awaitWritable();
+                }
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            if (this.selector == null) {
+                this.selector = Selector.open();
+                this.channel.register(this.selector, SelectionKey.OP_WRITE);
+            }
+
+            if (this.selector.select(this.timeout) == 0) {
+                throw new SocketTimeoutException("Client did not receive any data for " + this.timeout + " ms");
+            }
+
+            this.selector.selectedKeys().clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.selector != null) {
+                this.selector.close();
+            }
+        }
+    }
+}
\ No newline at end of file
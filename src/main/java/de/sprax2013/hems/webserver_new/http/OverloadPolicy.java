@@ -0,0 +1,20 @@
+package de.sprax2013.hems.webserver_new.http;
+
+/**
+ * Decides what happens to a new connection when all workers are busy and the work queue is full
+ *
+ * @see HemsWebServer#setWorkerQueueCapacity(int)
+ */
+public enum OverloadPolicy {
+    /**
+     * Answer with a pre-encoded <em>503 Service Unavailable</em> including a <em>Retry-After</em> header
+     * <br><br>
+     * Encrypted connections are closed instead, as answering would require a TLS handshake on the acceptor thread
+     */
+    SERVICE_UNAVAILABLE,
+
+    /**
+     * Close the connection without sending anything
+     */
+    CLOSE
+}
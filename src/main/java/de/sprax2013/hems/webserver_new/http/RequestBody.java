@@ -0,0 +1,223 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a {@link WebRequest}, which is only read from the connection once a route asks for it.
+ * <br><br>
+ * Use {@link #getInputStream()} or {@link #getChannel()} to process large bodies without holding them in memory.
+ * {@link #asByteBuffer()} reads the whole body once and returns read-only views of it afterwards.
+ * Parts of the body no route has read are skipped by the server, unless they are too large to be worth it,
+ * in which case the connection is closed instead.
+ */
+public class RequestBody {
+    /**
+     * Unread bodies up to this size are skipped to keep the connection open
+     */
+    static final long MAX_DRAIN_LENGTH = 64 * 1024;
+
+    static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final long length;
+    private final @Nullable HttpRequestParser parser;
+
+    private byte[] data;
+    private long remaining;
+    private InputStream stream;
+
+    private OutputStream continueOut;
+
+    /**
+     * A body that is already held in memory
+     */
+    RequestBody(byte[] data) {
+        this.length = data.length;
+        this.parser = null;
+
+        this.data = data;
+    }
+
+    /**
+     * A body that is read from the connection on demand
+     */
+    RequestBody(@NotNull HttpRequestParser parser, long length) {
+        this.length = length;
+        this.parser = parser;
+
+        this.remaining = length;
+    }
+
+    /**
+     * @return The length of the body in bytes, as announced by the client
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Returns a stream reading the body from the connection (or from memory, if it has been read already).
+     * Always returns the same stream, so the body can only be streamed once.
+     */
+    public @NotNull InputStream getInputStream() {
+        if (this.stream == null) {
+            if (this.data != null) {
+                this.stream = new ByteArrayInputStream(this.data);
+            } else {
+                this.stream = new BodyInputStream();
+            }
+        }
+
+        return this.stream;
+    }
+
+    /**
+     * @see #getInputStream()
+     */
+    public @NotNull ReadableByteChannel getChannel() {
+        return Channels.newChannel(getInputStream());
+    }
+
+    /**
+     * Reads the whole body into memory (if not done already) and returns a read-only view of it.
+     * Consider using {@link #getInputStream()} for large bodies.
+     *
+     * @throws IllegalStateException if the body has already been (partially) read as a stream
+     */
+    public @NotNull ByteBuffer asByteBuffer() throws IOException {
+        return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The whole body (shared - must not be modified)
+     */
+    byte[] toByteArray() throws IOException {
+        if (this.data == null) {
+            if (this.stream != null) {
+                throw new IllegalStateException("The body has already been read as stream");
+            }
+
+            if (this.length > Integer.MAX_VALUE - 8) {
+                throw new IOException("The body is too large to be held in memory (" + this.length + " bytes)");
+            }
+
+            byte[] result = new byte[(int) this.length];
+            int read = 0;
+
+            sendContinue();
+
+            while (read < result.length) {
+                int n = this.parser.readBody(result, read, result.length - read);
+
+                if (n == -1) {
+                    throw new EOFException("Connection closed while reading the request body");
+                }
+
+                read += n;
+            }
+
+            this.remaining = 0;
+            this.data = result;
+        }
+
+        return this.data;
+    }
+
+    /**
+     * @return The number of bytes that have not been read from the connection yet
+     */
+    long getRemaining() {
+        return this.remaining;
+    }
+
+    /**
+     * @return true, if the client waits for {@code 100 Continue} and has not been told to send the body yet
+     */
+    boolean isContinuePending() {
+        return this.continueOut != null;
+    }
+
+    /**
+     * Tells the client to send the body ({@code Expect: 100-continue}), once a route starts reading it
+     *
+     * @param out The stream to send the interim response to
+     */
+    void expectContinue(@NotNull OutputStream out) {
+        if (this.remaining > 0) {
+            this.continueOut = out;
+        }
+    }
+
+    /**
+     * Skips the remaining bytes of the body, so the next request can be read from the connection
+     */
+    void drain() throws IOException {
+        if (this.remaining == 0) return;
+
+        sendContinue();
+
+        byte[] skipBuffer = new byte[(int) Math.min(this.remaining, 8192)];
+
+        while (this.remaining > 0) {
+            int n = this.parser.readBody(skipBuffer, 0, (int) Math.min(this.remaining, skipBuffer.length));
+
+            if (n == -1) {
+                throw new EOFException("Connection closed while reading the request body");
+            }
+
+            this.remaining -= n;
+        }
+    }
+
+    private void sendContinue() throws IOException {
+        if (this.continueOut != null) {
+            OutputStream out = this.continueOut;
+            this.continueOut = null;
+
+            out.write(CONTINUE_RESPONSE);
+            out.flush();
+        }
+    }
+
+    private final class BodyInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (RequestBody.this.remaining == 0) return -1;
+            if (len == 0) return 0;
+
+            sendContinue();
+
+            int n = RequestBody.this.parser.readBody(b, off, (int) Math.min(len, RequestBody.this.remaining));
+
+            if (n == -1) {
+                throw new EOFException("Connection closed while reading the request body");
+            }
+
+            RequestBody.this.remaining -= n;
+
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(RequestBody.this.remaining, RequestBody.this.parser.bufferedBytes());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package de.sprax2013.hems.webserver_new.http;
+
+/**
+ * Decides how {@link HemsWebServer#listen(int)} accepts connections and reads requests
+ */
+public enum TransportMode {
+    /**
+     * A single acceptor thread feeding a bounded queue, that is served by one worker thread per CPU core
+     *
+     * @see HemsWebServer#setWorkerQueueCapacity(int)
+     * @see HemsWebServer#setOverloadPolicy(OverloadPolicy)
+     */
+    BLOCKING,
+
+    /**
+     * A single acceptor thread and one non-blocking event loop per CPU core, multiplexing many connections
+     * using a {@link java.nio.channels.Selector}
+     */
+    NIO,
+
+    /**
+     * A single acceptor thread starting a new virtual thread for every accepted connection
+     * <br><br>
+     * Requires Java 21 and a build using the <em>java21</em> Maven profile
+     */
+    VIRTUAL_THREADS
+}
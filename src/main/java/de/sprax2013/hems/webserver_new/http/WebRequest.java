@@ -1,12 +1,12 @@
 package de.sprax2013.hems.webserver_new.http;
 
-import de.sprax2013.hems.webserver.HttpStatusCode;
 import de.sprax2013.hems.webserver_new.http.router.RequestEventCallback;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
@@ -22,44 +22,74 @@ import java.util.Objects;
 
 @SuppressWarnings("unused")
 public class WebRequest {
+    /**
+     * Larger {@code application/x-www-form-urlencoded} bodies are not parsed
+     */
+    public static final int MAX_FORM_SIZE = 1024 * 1024;
+
+    private static final RequestBody EMPTY_BODY = new RequestBody(new byte[0]);
+
     private final @NotNull String remoteHost;
 
+    private final @Nullable HttpMethod httpMethod;
     private final @NotNull String method;
     private final @NotNull String fullPath;
-    private final @NotNull String rawPath;
+    /**
+     * The request-target as sent by the client
+     */
+    private final @NotNull String target;
+    private String rawPath;
 
-    private final @NotNull Map<String, String> queryArgs;
-    private final @NotNull Map<String, String> headers;
-    private final byte[] body;
+    /*
+     * Parsed on first access
+     */
+    private Map<String, List<String>> queryArgs;
+    private Map<String, String> firstQueryArgs;
+    private Map<String, List<String>> formArgs;
+    private Map<String, String> firstFormArgs;
+    private Map<String, String> cookies;
+
+    private @NotNull RequestBody body = EMPTY_BODY;
+
+    /**
+     * The raw request head - Header fields are stored as offsets into it and only turned into Strings on access
+     */
+    private final byte[] head;
+    /**
+     * Four entries per header field: name start, name end, value start, value end
+     */
+    private final int[] headerOffsets;
+    private final int headerCount;
+    private String[] headerValues;
+    private Map<String, String> headers;
 
     private @NotNull String path;
 
+    /*
+     * The values of the path parameters are only extracted from paramPath, once they are accessed
+     */
+    private String paramPath;
+    private String[] paramNames;
+    private int[] paramOffsets;
+
     private Map<RequestEvent, List<RequestEventCallback>> eventHandlers;
 
-    // TODO: Only parse get and post params when accessing them
     // TODO: add #getMountPath() e.g. srv.get("/home", obj) "/home/foo.txt" returns "/home"
     // TODO: add #getProtocol() returning http or https
     // TODO: add #isHttps() returning true if #getProtocol() == "https"
-    // TODO: parse cookies
 
-    private WebRequest(@NotNull String remoteHost, @NotNull String method, @NotNull String rawPath, @NotNull String path,
-                       @NotNull LinkedHashMap<String, String> queryArgs, @NotNull LinkedHashMap<String, String> headers, byte[] body) {
+    WebRequest(@NotNull String remoteHost, @Nullable HttpMethod httpMethod, @NotNull String method, @NotNull String target,
+               @NotNull String path, byte[] head, int[] headerOffsets, int headerCount) {
         this.remoteHost = Objects.requireNonNull(remoteHost);
 
+        this.httpMethod = httpMethod;
         this.method = Objects.requireNonNull(method);
         this.fullPath = Objects.requireNonNull(path);
-        this.rawPath = Objects.requireNonNull(rawPath);
-
-        this.queryArgs = Collections.unmodifiableMap(Objects.requireNonNull(queryArgs));
-        this.headers = Collections.unmodifiableMap(Objects.requireNonNull(headers));
-        this.body = body != null ? body : new byte[0];
+        this.target = Objects.requireNonNull(target);
 
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            if (entry.getKey() == null ||
-                    !entry.getKey().equals(entry.getKey().toLowerCase(Locale.ROOT))) {
-                throw new IllegalArgumentException("Header fields need to be lower case strings");
-            }
-        }
+        this.head = Objects.requireNonNull(head);
+        this.headerOffsets = Objects.requireNonNull(headerOffsets);
+        this.headerCount = headerCount;
 
         this.path = this.fullPath;
     }
@@ -74,19 +104,45 @@ public class WebRequest {
         return this.method;
     }
 
+    /**
+     * @return The method or {@code null}, if it is not one of {@link HttpMethod}
+     */
+    @Nullable
+    public HttpMethod getHttpMethod() {
+        return this.httpMethod;
+    }
+
     @NotNull
     public String getFullPath() {
         return this.fullPath;
     }
 
+    /**
+     * @return The decoded request-target, including the query
+     */
     @NotNull
     public String getRawPath() {
+        if (this.rawPath == null) {
+            // FIXME: Check if URLDecoder is the way to go. I think a URIDecoder should be used for this
+            String result = URLDecoder.decode(this.target, StandardCharsets.UTF_8);
+
+            this.rawPath = result.isEmpty() ? "/" : result;
+        }
+
         return this.rawPath;
     }
 
+    /**
+     * @return The request-target as sent by the client (not decoded)
+     */
+    @NotNull
+    String getTarget() {
+        return this.target;
+    }
+
     // TODO: Do not expose this method to public
     public void setPath(@NotNull String path) {
-        this.path = HttpUtils.normalizeToRootPath(Objects.requireNonNull(path));
+        this.path = HttpPath.normalize(Objects.requireNonNull(path));
     }
 
     /**
@@ -102,149 +158,312 @@ public class WebRequest {
     }
 
     public String getHeader(String header) {
-        return this.headers.get(header.toLowerCase(Locale.ROOT));
+        // Iterate backwards, so the last occurrence of a header field wins
+        for (int i = this.headerCount - 1; i >= 0; --i) {
+            int nameStart = this.headerOffsets[i * 4];
+            int nameEnd = this.headerOffsets[i * 4 + 1];
+
+            if (nameEnd - nameStart == header.length() &&
+                    HttpRequestParser.regionMatches(this.head, nameStart, header, true)) {
+                return getHeaderValue(i);
+            }
+        }
+
+        return null;
     }
 
     public @NotNull Map<String, String> getHeaders() {
+        if (this.headers == null) {
+            Map<String, String> result = new LinkedHashMap<>(this.headerCount * 2);
+
+            for (int i = 0; i < this.headerCount; ++i) {
+                int nameStart = this.headerOffsets[i * 4];
+                int nameEnd = this.headerOffsets[i * 4 + 1];
+
+                result.put(new String(this.head, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT),
+                        getHeaderValue(i));
+            }
+
+            this.headers = Collections.unmodifiableMap(result);
+        }
+
         return this.headers;
     }
 
+    private @NotNull String getHeaderValue(int index) {
+        if (this.headerValues == null) {
+            this.headerValues = new String[this.headerCount];
+        }
+
+        if (this.headerValues[index] == null) {
+            int valueStart = this.headerOffsets[index * 4 + 2];
+            int valueEnd = this.headerOffsets[index * 4 + 3];
+
+            this.headerValues[index] = new String(this.head, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+        }
+
+        return this.headerValues[index];
+    }
+
+    /**
+     * @return The first value of the given query argument or {@code null}
+     */
     @Nullable
     public String getQueryArg(String key) {
-        return this.queryArgs.get(key.toLowerCase(Locale.ROOT));
+        return getQueryArgs().get(key.toLowerCase(Locale.ROOT));
     }
 
+    /**
+     * @return All values of the given query argument (e.g. {@code ?tag=a&tag=b})
+     */
+    public @NotNull List<String> getQueryArgValues(String key) {
+        return getAllQueryArgs().getOrDefault(key.toLowerCase(Locale.ROOT), Collections.emptyList());
+    }
+
+    /**
+     * @return The lower case keys of all query arguments and their first value
+     */
     public @NotNull Map<String, String> getQueryArgs() {
+        if (this.firstQueryArgs == null) {
+            this.firstQueryArgs = firstValues(getAllQueryArgs());
+        }
+
+        return this.firstQueryArgs;
+    }
+
+    /**
+     * @return The lower case keys of all query arguments and all of their values
+     */
+    public @NotNull Map<String, List<String>> getAllQueryArgs() {
+        if (this.queryArgs == null) {
+            int queryStartIndex = this.target.indexOf('?');
+
+            this.queryArgs = queryStartIndex != -1 ?
+                    unmodifiable(HttpUtils.parseUrlEncoded(this.target.substring(queryStartIndex + 1))) :
+                    Collections.emptyMap();
+        }
+
         return this.queryArgs;
     }
 
-    public byte[] getBody() {
-        return Arrays.copyOf(this.body, this.body.length);
+    /**
+     * @return The first value of the given field of an {@code application/x-www-form-urlencoded} body or {@code null}
+     *
+     * @see #getAllFormArgs()
+     */
+    @Nullable
+    public String getFormArg(String key) {
+        return getFormArgs().get(key.toLowerCase(Locale.ROOT));
     }
 
-    public String getParam(@NotNull String paramName) {
-        throw new UnsupportedOperationException("Not implemented yet");
+    /**
+     * @see #getAllFormArgs()
+     */
+    public @NotNull List<String> getFormArgValues(String key) {
+        return getAllFormArgs().getOrDefault(key.toLowerCase(Locale.ROOT), Collections.emptyList());
     }
 
-    public void onEvent(@NotNull RequestEvent event, @NotNull RequestEventCallback callback) {
-        if (this.eventHandlers == null) {
-            this.eventHandlers = new HashMap<>(1);
+    /**
+     * @see #getAllFormArgs()
+     */
+    public @NotNull Map<String, String> getFormArgs() {
+        if (this.firstFormArgs == null) {
+            this.firstFormArgs = firstValues(getAllFormArgs());
         }
 
-        this.eventHandlers.computeIfAbsent(event, e -> new LinkedList<>());
-        this.eventHandlers.get(event).add(callback);
+        return this.firstFormArgs;
     }
 
-    void callEvent(@NotNull RequestEvent event, @NotNull WebResponse res) {
-        if (this.eventHandlers != null) {
-            List<RequestEventCallback> callbacks = this.eventHandlers.get(event);
+    /**
+     * Reads and parses the body, if it is {@code application/x-www-form-urlencoded} and not larger than
+     * {@link #MAX_FORM_SIZE}. Use {@link MultipartReader} for {@code multipart/form-data}.
+     *
+     * @return The lower case keys of all form fields and all of their values
+     *
+     * @throws UncheckedIOException if the body could not be read
+     */
+    public @NotNull Map<String, List<String>> getAllFormArgs() {
+        if (this.formArgs == null) {
+            String contentType = getHeader("Content-Type");
 
-            if (callbacks != null) {
-                for (RequestEventCallback c : callbacks) {
-                    c.call(this, res);
+            if (contentType != null &&
+                    contentType.toLowerCase(Locale.ROOT).startsWith("application/x-www-form-urlencoded") &&
+                    this.body.getLength() <= MAX_FORM_SIZE) {
+                try {
+                    this.formArgs = unmodifiable(HttpUtils.parseUrlEncoded(new String(this.body.toByteArray(), StandardCharsets.UTF_8)));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
                 }
+            } else {
+                this.formArgs = Collections.emptyMap();
             }
         }
-    }
 
-    public static WebRequest parse(@NotNull Socket client, @NotNull InputStream in) throws IOException, HttpProtocolException {
-        String reqMethod = null;
-        String reqPath = null;
-        String reqRawPath = null;
+        return this.formArgs;
+    }
 
-        LinkedHashMap<String, String> queryArgs = new LinkedHashMap<>();
-        LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+    /**
+     * @return The value of the given cookie or {@code null}
+     */
+    @Nullable
+    public String getCookie(@NotNull String name) {
+        return getCookies().get(name);
+    }
 
-        byte[] reqBody = null;
-        String multiPartBoundary = null;
+    /**
+     * @return All cookies sent by the client - Names are case-sensitive
+     */
+    public @NotNull Map<String, String> getCookies() {
+        if (this.cookies == null) {
+            String cookieHeader = getHeader("Cookie");
 
-        String lastHeaderKey = null;
-        while (true) {
-            // Parse Method, Path and HTTP-Version
-            if (reqMethod == null) {
-                byte firstByte = in.readNBytes(1)[0];
+            if (cookieHeader != null) {
+                Map<String, String> result = new LinkedHashMap<>();
 
-                if (!Character.isAlphabetic(firstByte)) {
-                    throw new UnsupportedOperationException("Received invalid first byte from client - Wrong protocol?");
-                }
+                for (String pair : cookieHeader.split(";")) {
+                    int equals = pair.indexOf('=');
+                    if (equals <= 0) continue;
 
-                String line = new String(new byte[] {firstByte}, StandardCharsets.UTF_8) + new String(HttpUtils.readHttpHeaderLine(in), StandardCharsets.UTF_8);
+                    String name = pair.substring(0, equals).trim();
+                    String value = pair.substring(equals + 1).trim();
 
-                reqMethod = line.substring(0, line.indexOf(' '));
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
 
-                if (!reqMethod.equals(reqMethod.toUpperCase(Locale.ROOT))) {
-                    throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST); // Methods need to be uppercase
+                    // More specific cookies are sent first (RFC 6265, section 5.4)
+                    result.putIfAbsent(name, value);
                 }
 
-                // FIXME: Check if URLDecoder is the way to go. I think a URIDecoder should be used for this
-                reqPath = URLDecoder.decode(line.substring(line.indexOf(' ', line.indexOf(' ')) + 1, line.lastIndexOf(' ')), StandardCharsets.UTF_8);
+                this.cookies = Collections.unmodifiableMap(result);
+            } else {
+                this.cookies = Collections.emptyMap();
+            }
+        }
 
-                if (reqPath.isEmpty()) {
-                    reqPath = "/";
-                }
+        return this.cookies;
+    }
 
-                reqRawPath = reqPath;
+    private static Map<String, List<String>> unmodifiable(@NotNull Map<String, List<String>> map) {
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
 
-                int queryStartIndex = reqPath.indexOf('?');
-                if (queryStartIndex != -1) {
-                    String queryStr = reqPath.substring(queryStartIndex + 1);   // e.g. "username=Sprax&darkMode=1"
-                    reqPath = reqPath.substring(0, queryStartIndex);
+        return Collections.unmodifiableMap(map);
+    }
 
-                    for (String qPair : queryStr.split("&")) {
-                        int dividerIndex = qPair.indexOf('=');
+    private static Map<String, String> firstValues(@NotNull Map<String, List<String>> map) {
+        Map<String, String> result = new LinkedHashMap<>(map.size() * 2);
 
-                        String qKey = URLDecoder.decode(qPair.substring(0, dividerIndex), StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get(0));
+        }
 
-                        if (queryArgs.containsKey(qKey)) {
-                            // According to RFC2616: handle all or tell client he should not use the same key more than once
-                            throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
-                        }
+        return Collections.unmodifiableMap(result);
+    }
 
-                        // FIXME: A URIDecode should be used. URLDecoder may produce wrong output for this kind of input,
-                        //        but Java does not have one - Using URLDecoder for now
-                        queryArgs.put(qKey,
-                                URLDecoder.decode(qPair.substring(dividerIndex + 1), StandardCharsets.UTF_8));
-                    }
-                }
+    /**
+     * Reads the whole body into memory, consider using {@link #getRequestBody()} for large bodies.
+     *
+     * @return A copy of the body
+     */
+    public byte[] getBody() {
+        try {
+            byte[] body = this.body.toByteArray();
 
-                String protocol = line.substring(line.lastIndexOf(' ') + 1).trim();
-                if (!protocol.equalsIgnoreCase("HTTP/1.1")) {
-                    throw new HttpProtocolException(HttpStatusCode.HTTP_VERSION_NOT_SUPPORTED);
-                }
-            } else {    // Parse Header fields
-                String line = new String(HttpUtils.readHttpHeaderLine(in), StandardCharsets.UTF_8);
+            return Arrays.copyOf(body, body.length);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
 
-                if (line.isBlank()) break;  // End of headers (begin of body?)
+    public @NotNull RequestBody getRequestBody() {
+        return this.body;
+    }
+
+    void setBody(byte[] body) {
+        this.body = new RequestBody(body);
+    }
 
-                // Multiline header?
-                if (Character.isWhitespace(line.charAt(0))) {
-                    headers.put(lastHeaderKey, headers.get(lastHeaderKey) + line.trim());
-                } else {
-                    lastHeaderKey = line.substring(0, line.indexOf(':')).trim().toLowerCase(Locale.ROOT);
-                    String headerValue = line.substring(line.indexOf(':') + 1).trim();
+    void setBody(@NotNull RequestBody body) {
+        this.body = Objects.requireNonNull(body);
+    }
 
-                    headers.put(lastHeaderKey, headerValue);
+    /**
+     * @param paramName The name of a parameter in the path of the current middleware (e.g. {@code id} for {@code /user/:id})
+     *
+     * @return The value of the parameter or {@code null}, if the path has no such parameter or an optional one is missing
+     */
+    public @Nullable String getParam(@NotNull String paramName) {
+        if (this.paramNames != null) {
+            for (int i = 0; i < this.paramNames.length; ++i) {
+                if (this.paramNames[i].equals(paramName)) {
+                    return this.paramPath.substring(this.paramOffsets[i * 2], this.paramOffsets[i * 2 + 1]);
                 }
             }
         }
 
-        if (!reqMethod.equals(HttpMethod.GET.name())) {
-            String contentLength = headers.get("content-length");
-            if (contentLength != null) {
-                try {
-                    reqBody = in.readNBytes(Integer.parseInt(contentLength));
-                } catch (NumberFormatException ignore) {
-                    throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST); // Invalid value for Content-Length
-                }
-            }
+        return null;
+    }
+
+    /**
+     * @param path    The path the parameters have been matched in
+     * @param names   The names of the parameters or {@code null}
+     * @param offsets The start and end index of each parameter's value in {@code path}
+     */
+    // TODO: Do not expose this method to public
+    public void setParams(@NotNull String path, String[] names, int[] offsets) {
+        this.paramPath = path;
+        this.paramNames = names;
+        this.paramOffsets = offsets;
+    }
+
+    public void onEvent(@NotNull RequestEvent event, @NotNull RequestEventCallback callback) {
+        if (this.eventHandlers == null) {
+            this.eventHandlers = new HashMap<>(1);
         }
 
-        WebRequest result = new WebRequest(client.getInetAddress().getHostAddress(), reqMethod, reqRawPath, reqPath, queryArgs, headers, reqBody);
+        this.eventHandlers.computeIfAbsent(event, e -> new LinkedList<>());
+        this.eventHandlers.get(event).add(callback);
+    }
+
+    void callEvent(@NotNull RequestEvent event, @NotNull WebResponse res) {
+        if (this.eventHandlers != null) {
+            List<RequestEventCallback> callbacks = this.eventHandlers.get(event);
 
-        if (result.getHeader("Host") == null || result.getHeader("Host").isBlank()) {
-            throw new HttpProtocolException(HttpStatusCode.BAD_REQUEST);
+            if (callbacks != null) {
+                for (RequestEventCallback c : callbacks) {
+                    c.call(this, res);
+                }
+            }
         }
+    }
 
-        return result;
+    /**
+     * Reads a single request from the given connection.
+     *
+     * @param client The connection the request is read from
+     * @param in     The {@link InputStream} of {@code client}
+     *
+     * @return The parsed request or {@code null}, if the client closed the connection or did not send anything
+     * before the socket timed out
+     */
+    public static @Nullable WebRequest parse(@NotNull Socket client, @NotNull InputStream in) throws IOException, HttpProtocolException {
+        return parse(client.getInetAddress().getHostAddress(), in);
+    }
+
+    /**
+     * Reads a single request from the given {@link InputStream}.
+     * <br><br>
+     * Bytes following the request may be consumed as well.
+     * Use a {@link HttpRequestParser} to read multiple requests from the same stream.
+     *
+     * @param remoteHost The address of the client that sent the request
+     * @param in         The {@link InputStream} to read the request from
+     *
+     * @return The parsed request or {@code null}, if the stream ended or timed out before the request started
+     */
+    public static @Nullable WebRequest parse(@NotNull String remoteHost, @NotNull InputStream in) throws IOException, HttpProtocolException {
+        return new HttpRequestParser(remoteHost, in).parse();
     }
 }
\ No newline at end of file
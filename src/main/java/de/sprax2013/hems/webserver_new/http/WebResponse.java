@@ -5,10 +5,10 @@ import de.sprax2013.hems.webserver.HttpStatusCode;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.TemporalAccessor;
@@ -18,8 +18,6 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPOutputStream;
 
 @SuppressWarnings({"UnusedReturnValue", "unused"})
 public class WebResponse {
@@ -32,6 +30,18 @@ public class WebResponse {
     private HttpStatusCode status;
     private byte[] body;
     private byte[] effectiveBody;
+    private FileRegion file;
+    private BodyWriter bodyWriter;
+    private long bodyWriterLength = -1;
+    private long streamedLength;
+    private CompressionPolicy compressionPolicy;
+    private String streamEncoding;
+    private int streamLevel;
+    private boolean fileStreamCompression = true;
+    /**
+     * true, if the {@code Cache-Control} header has been set by {@link #send(HttpStatusCode)}
+     */
+    private boolean statusPageCacheControl;
 
     private final Map<String, String> headers = new LinkedHashMap<>();
 
@@ -44,12 +54,16 @@ public class WebResponse {
 
         if (defaultHeaders != null) {
             this.headers.putAll(defaultHeaders);
+
+            if (defaultHeaders.containsKey("cache-control")) {
+                this.statusPageCacheControl = false;
+            }
         }
     }
 
     public WebResponse send(HttpStatusCode status) {
         this.status = status;
-        setDate(LocalDateTime.now());
+        this.headers.put("date", HttpDate.now());
 
         setHTML("<!DOCTYPE html>" +
                 "<html lang=\"en\">" +
@@ -62,6 +76,12 @@ public class WebResponse {
                 "</body>" +
                 "</html>");
 
+        // Status pages are not worth caching, but the header is removed again if a route sets a body of its own
+        if (!this.headers.containsKey("cache-control")) {
+            this.headers.put("cache-control", "max-age=0, no-cache, no-store, must-revalidate");
+            this.statusPageCacheControl = true;
+        }
+
         return this;
     }
 
@@ -87,44 +107,23 @@ public class WebResponse {
 
     public byte[] getEffectiveBody(WebRequest req) {
         if (this.effectiveBody == null) {
-            if (this.body.length > 0 && req.getHeader("Accept-Encoding") != null) {
-                String[] acceptedEncodings = req.getHeader("Accept-Encoding")
-                        .toLowerCase(Locale.ROOT)
-                        .split(",");
-
-                for (String s : acceptedEncodings) {
-                    s = s.trim();
-
-                    if (s.equals("gzip")) {
-                        try {
-                            byte[] compressedBody = gzipData(this.body);
-
-                            if (compressedBody.length < this.body.length) {
-                                this.effectiveBody = compressedBody;
-                                setHeader("Content-Encoding", "gzip");
-                            }
-                        } catch (IOException ex) {
-                            ex.printStackTrace();
-
-                            this.effectiveBody = this.body;
-                        }
-
-                        break;
-                    } else if (s.equals("deflate")) {
-                        try {
-                            byte[] compressedBody = deflateData(this.body);
-
-                            if (compressedBody.length < this.body.length) {
-                                this.effectiveBody = compressedBody;
-                                setHeader("Content-Encoding", "deflate");
-                            }
-                        } catch (IOException ex) {
-                            ex.printStackTrace();
-
-                            this.effectiveBody = this.body;
-                        }
-
-                        break;
+            String contentType = getHeader("Content-Type");
+
+            if (this.file != null || this.bodyWriter != null) {
+                prepareStreamCompression(req, contentType);
+            } else if (this.compressionPolicy != null &&
+                    getHeader("Content-Encoding") == null &&
+                    this.compressionPolicy.isCompressible(contentType, this.body.length)) {
+                addVary("Accept-Encoding");
+
+                String encoding = HttpUtils.selectContentEncoding(req.getHeader("Accept-Encoding"));
+                int level = encoding != null ? this.compressionPolicy.getLevelForCurrentLoad(contentType) : CompressionPolicy.SKIP;
+
+                if (level != CompressionPolicy.SKIP) {
+                    this.effectiveBody = HttpUtils.compress(this.body, encoding, level);
+
+                    if (this.effectiveBody != null) {
+                        setContentEncoding(encoding);
                     }
                 }
             }
@@ -139,16 +138,187 @@ public class WebResponse {
         return this.effectiveBody;
     }
 
+    /**
+     * Decides whether the file or {@link BodyWriter} is compressed while it is being sent,
+     * which requires {@code Transfer-Encoding: chunked} as the compressed length is not known in advance
+     */
+    private void prepareStreamCompression(@NotNull WebRequest req, @Nullable String contentType) {
+        this.streamEncoding = null;
+
+        long length = this.file != null ? this.file.getLength() : this.bodyWriterLength;
+
+        if (this.compressionPolicy == null ||
+                getHeader("Content-Encoding") != null ||
+                getHeader("Content-Range") != null ||
+                !this.compressionPolicy.isCompressible(contentType, length == -1 ? Long.MAX_VALUE : length)) {
+            return;
+        }
+
+        addVary("Accept-Encoding");
+
+        // Files are sent as is instead, so they can still be transferred without blocking
+        if (this.file != null && !this.fileStreamCompression) return;
+
+        String encoding = HttpUtils.selectContentEncoding(req.getHeader("Accept-Encoding"));
+        int level = encoding != null ? this.compressionPolicy.getLevelForCurrentLoad(contentType) : CompressionPolicy.SKIP;
+
+        if (level != CompressionPolicy.SKIP) {
+            this.streamEncoding = encoding;
+            this.streamLevel = level;
+
+            setContentEncoding(encoding);
+            setHeader("Content-Length", null);
+            setHeader("Transfer-Encoding", "chunked");
+        }
+    }
+
+    /**
+     * @return The content-coding the file or {@link BodyWriter} is compressed with while it is being sent
+     * or {@code null} if it is sent as is (only known after {@link #getEffectiveBody(WebRequest)} has been called)
+     */
+    @Nullable String getStreamEncoding() {
+        return this.streamEncoding;
+    }
+
+    int getStreamLevel() {
+        return this.streamLevel;
+    }
+
+    /**
+     * @param fileStreamCompression false, if files should never be compressed while they are being sent
+     *                              (e.g. because the response is written by an event loop,
+     *                              that would be blocked for the whole transfer)
+     *
+     * @return The same {@link WebResponse} instance for chaining
+     */
+    WebResponse setFileStreamCompression(boolean fileStreamCompression) {
+        this.fileStreamCompression = fileStreamCompression;
+
+        return this;
+    }
+
+    public @Nullable CompressionPolicy getCompressionPolicy() {
+        return this.compressionPolicy;
+    }
+
+    /**
+     * @param compressionPolicy Decides whether the body is compressed, {@code null} if the body should be sent as is
+     *                          (e.g. because the route already took care of it by setting {@code Content-Encoding} itself)
+     *
+     * @return The same {@link WebResponse} instance for chaining
+     *
+     * @see HemsWebServer#setCompressionPolicy(CompressionPolicy)
+     */
+    public WebResponse setCompressionPolicy(@Nullable CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        this.effectiveBody = null;
+
+        return this;
+    }
+
     public WebResponse setBody(byte[] body) {
         this.body = body == null ? new byte[0] : body;
         this.effectiveBody = null;
+        this.file = null;
+        this.bodyWriter = null;
+        this.streamEncoding = null;
+
+        if (this.statusPageCacheControl) {
+            this.headers.remove("cache-control");
+            this.statusPageCacheControl = false;
+        }
 
         setHeader("Content-Length", String.valueOf(this.body.length));
         setHeader("Content-Encoding", null);
+        setHeader("Transfer-Encoding", null);
 
         return this;
     }
 
+    /**
+     * Uses the given file region as body, which is streamed to the client instead of being read into memory.
+     * If the {@link CompressionPolicy} allows it, the file is compressed while it is being sent (using chunked encoding).
+     */
+    public WebResponse setFile(@NotNull FileRegion file) {
+        setBody((byte[]) null);
+        this.file = file;
+
+        setHeader("Content-Length", String.valueOf(file.getLength()));
+
+        return this;
+    }
+
+    /**
+     * @see #setFile(FileRegion)
+     */
+    public WebResponse setFile(@NotNull Path file) throws IOException {
+        return setFile(new FileRegion(file, 0, Files.size(file)));
+    }
+
+    public @Nullable FileRegion getFile() {
+        return this.file;
+    }
+
+    /**
+     * Uses a body of unknown length, that is produced while it is being sent using {@code Transfer-Encoding: chunked}.
+     * The head is sent as soon as the route returns, before the body is produced.
+     * If the {@link CompressionPolicy} allows it, the body is compressed while it is being sent.
+     */
+    public WebResponse setBody(@NotNull BodyWriter bodyWriter) {
+        setBody((byte[]) null);
+        this.bodyWriter = bodyWriter;
+        this.bodyWriterLength = -1;
+
+        setHeader("Content-Length", null);
+        setHeader("Transfer-Encoding", "chunked");
+
+        return this;
+    }
+
+    /**
+     * Like {@link #setBody(BodyWriter)} but for bodies of known length, so no chunked encoding is needed (unless it is compressed).
+     * The connection is closed if the {@link BodyWriter} writes more or less than {@code length} bytes.
+     */
+    public WebResponse setBody(@NotNull BodyWriter bodyWriter, long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length may not be negative");
+        }
+
+        setBody((byte[]) null);
+        this.bodyWriter = bodyWriter;
+        this.bodyWriterLength = length;
+
+        setHeader("Content-Length", String.valueOf(length));
+
+        return this;
+    }
+
+    public @Nullable BodyWriter getBodyWriter() {
+        return this.bodyWriter;
+    }
+
+    /**
+     * @return The announced length of the {@link BodyWriter}'s body or {@code -1} if it is unknown
+     */
+    public long getBodyWriterLength() {
+        return this.bodyWriterLength;
+    }
+
+    void setStreamedLength(long streamedLength) {
+        this.streamedLength = streamedLength;
+    }
+
+    /**
+     * @return The number of body bytes sent to the client (ignoring HEAD requests)
+     */
+    public long getEffectiveBodyLength(WebRequest req) {
+        if (this.bodyWriter != null || this.streamEncoding != null) {
+            return this.streamedLength;
+        }
+
+        return this.file != null ? this.file.getLength() : getEffectiveBody(req).length;
+    }
+
     public WebResponse setBody(String body) {
         setBody(body.getBytes(StandardCharsets.UTF_8));
         setContentType("text/plain; charset=utf-8");
@@ -160,18 +330,20 @@ public class WebResponse {
         setBody(body);
         setContentType("text/html; charset=utf-8");
 
-        if (!this.headers.containsKey("cache-control")) {
-            this.headers.put("cache-control", "max-age=0, no-cache, no-store, must-revalidate");
-        }
-
         return this;
     }
 
     public WebResponse setHeader(String field, String value) {
+        field = field.toLowerCase(Locale.ROOT);
+
         if (value == null) {
-            this.headers.remove(field.toLowerCase(Locale.ROOT));
+            this.headers.remove(field);
         } else {
-            this.headers.put(field.toLowerCase(Locale.ROOT), value);
+            this.headers.put(field, value);
+        }
+
+        if (field.equals("cache-control")) {
+            this.statusPageCacheControl = false;
         }
 
         return this;
@@ -184,6 +356,29 @@ public class WebResponse {
         return this;
     }
 
+    /**
+     * Adds the given header field to {@code Vary}, if it is not listed already
+     *
+     * @return The same {@link WebResponse} instance for chaining
+     */
+    public WebResponse addVary(@NotNull String field) {
+        String vary = getHeader("Vary");
+
+        if (vary == null) {
+            setHeader("Vary", field);
+        } else {
+            for (String s : vary.split(",")) {
+                if (s.trim().equalsIgnoreCase(field) || s.trim().equals("*")) {
+                    return this;
+                }
+            }
+
+            setHeader("Vary", vary + ", " + field);
+        }
+
+        return this;
+    }
+
     public String getHeader(String field) {
         return headers.get(field.toLowerCase(Locale.ROOT));
     }
@@ -192,6 +387,23 @@ public class WebResponse {
         return Collections.unmodifiableMap(headers);
     }
 
+    /**
+     * Sets the {@code Content-Encoding} of the body and makes a strong {@code ETag} specific to it
+     * (e.g. {@code "abc"} becomes {@code "abc-gzip"}), as a strong validator identifies the exact bytes sent
+     *
+     * @return The same {@link WebResponse} instance for chaining
+     */
+    public WebResponse setContentEncoding(@Nullable String encoding) {
+        setHeader("Content-Encoding", encoding);
+
+        String etag = getHeader("ETag");
+        if (encoding != null && etag != null && !etag.startsWith("W/") && etag.endsWith("\"")) {
+            setHeader("ETag", etag.substring(0, etag.length() - 1) + '-' + encoding + '"');
+        }
+
+        return this;
+    }
+
     public WebResponse setContentType(@Nullable String contentType) {
         setHeader("Content-Type", contentType);
 
@@ -217,26 +429,4 @@ public class WebResponse {
     public HashMap<String, Object> getLocals() {
         return this.locals;
     }
-
-    private byte[] deflateData(byte[] data) throws IOException {
-        try (ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-             DeflaterOutputStream dOut = new DeflaterOutputStream(bOut)) {
-            dOut.write(data);
-            dOut.flush();
-            dOut.finish();
-
-            return bOut.toByteArray();
-        }
-    }
-
-    private static byte[] gzipData(byte[] data) throws IOException {
-        try (ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-             GZIPOutputStream gzipOut = new GZIPOutputStream(bOut)) {
-            gzipOut.write(data);
-            gzipOut.flush();
-            gzipOut.finish();
-
-            return bOut.toByteArray();
-        }
-    }
-}
\ No newline at end of file
+}
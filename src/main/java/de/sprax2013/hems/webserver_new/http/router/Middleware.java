@@ -8,7 +8,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Objects;
 import java.util.regex.Pattern;
 
@@ -53,40 +52,12 @@ public class Middleware {
         return this.method;
     }
 
-    boolean matchesMethod(@NotNull String method) {
-        return this.method == null || this.method.equals(method);
-    }
-
     public Object getPath() {
         return this.path;
     }
 
-    boolean matchesPath(@NotNull String path, boolean caseSensitive) {
-        if (this.path instanceof String) {
-            return caseSensitive ?
-                    path.startsWith((String) this.path) :
-                    path.toLowerCase(Locale.ROOT).startsWith(((String) this.path).toLowerCase(Locale.ROOT));
-        }
-
-        if (this.path instanceof Pattern) {
-            return ((Pattern) this.path).matcher(path).matches();
-        }
-
-        if (this.path instanceof Collection) {
-            for (Object l : (Collection<?>) this.path) {
-                if (l instanceof String) {
-                    if (caseSensitive ? l.equals(path) : ((String) l).equalsIgnoreCase(path)) {
-                        return true;
-                    }
-                } else {
-                    throw new UnsupportedOperationException();
-                }
-            }
-
-            return false;
-        }
-
-        throw new UnsupportedOperationException();
+    boolean hasCallback(@NotNull IRouteCallback callback) {
+        return this.callback == callback;
     }
 
     @NotNull
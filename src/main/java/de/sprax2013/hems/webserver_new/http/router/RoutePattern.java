@@ -0,0 +1,312 @@
+package de.sprax2013.hems.webserver_new.http.router;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The literal parts of a {@link Pattern} a path has to contain to possibly match it,
+ * so most paths can be rejected without running the regular expression.
+ * <br><br>
+ * The analysis is conservative: Whenever a pattern uses constructs that are not understood
+ * (e.g. inline flags or quoting), no literals are extracted and the pattern is always evaluated.
+ */
+final class RoutePattern {
+    private static final int COMBINABLE_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL |
+            Pattern.MULTILINE | Pattern.UNIX_LINES | Pattern.UNICODE_CHARACTER_CLASS;
+
+    final Pattern pattern;
+    /**
+     * The literal every matching path starts with (may be empty)
+     */
+    final String prefix;
+    /**
+     * The longest literal every matching path contains (may be empty)
+     */
+    final String required;
+    final boolean caseInsensitive;
+    /**
+     * true, if the pattern can be part of an alternation (see {@link #combine(List, int[])})
+     */
+    final boolean combinable;
+
+    private RoutePattern(@NotNull Pattern pattern, @NotNull String prefix, @NotNull String required, boolean combinable) {
+        this.pattern = pattern;
+        this.prefix = prefix;
+        this.required = required;
+        this.caseInsensitive = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        this.combinable = combinable;
+    }
+
+    /**
+     * @return true, if the path contains the required literal (the pattern may still not match)
+     */
+    boolean mayMatch(@NotNull String path) {
+        if (this.required.isEmpty()) return true;
+
+        if (!this.caseInsensitive) {
+            return path.contains(this.required);
+        }
+
+        for (int i = 0; i <= path.length() - this.required.length(); ++i) {
+            if (path.regionMatches(true, i, this.required, 0, this.required.length())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    boolean matches(@NotNull String path) {
+        return mayMatch(path) && this.pattern.matcher(path).matches();
+    }
+
+    static @NotNull RoutePattern of(@NotNull Pattern pattern) {
+        String regex = pattern.pattern();
+        int flags = pattern.flags();
+
+        if ((flags & Pattern.LITERAL) != 0) {
+            return new RoutePattern(pattern, regex, regex, false);
+        }
+
+        boolean understood = (flags & (Pattern.COMMENTS | Pattern.CANON_EQ)) == 0 &&
+                !regex.contains("\\Q") &&
+                !hasInlineFlags(regex);
+        boolean combinable = understood && (flags & ~COMBINABLE_FLAGS) == 0 &&
+                !regex.contains("(?<") && !hasBackReference(regex);
+
+        if (!understood) {
+            return new RoutePattern(pattern, "", "", false);
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        StringBuilder run = new StringBuilder();
+        String required = "";
+
+        boolean atStart = true;
+        boolean lastWasLiteral = false;
+        int depth = 0;
+
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            char literal = 0;
+
+            if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(i + 1);
+
+                if (Character.isLetterOrDigit(next)) {
+                    // Character classes (\d), anchors (\b), properties (\p{L}), ...
+                    i = skipEscape(regex, i);
+                } else {
+                    literal = next;
+                    i += 2;
+                }
+            } else if (c == '[') {
+                i = skipCharacterClass(regex, i);
+            } else if (c == '(') {
+                ++depth;
+                ++i;
+            } else if (c == ')') {
+                --depth;
+                ++i;
+            } else if (c == '|') {
+                if (depth == 0) {
+                    // Alternatives at the top level don't have any literal in common
+                    return new RoutePattern(pattern, "", "", combinable);
+                }
+
+                ++i;
+            } else if (c == '*' || c == '?' || c == '{' || c == '+') {
+                if (lastWasLiteral && c != '+') {
+                    // The literal before is optional
+                    run.setLength(run.length() - 1);
+
+                    if (atStart) {
+                        prefix.setLength(prefix.length() - 1);
+                    }
+                }
+
+                i = skipQuantifier(regex, i);
+            } else if (c == '.' || c == '^' || c == '$') {
+                ++i;
+            } else {
+                literal = c;
+                ++i;
+            }
+
+            if (literal != 0 && depth == 0) {
+                run.append(literal);
+
+                if (atStart) {
+                    prefix.append(literal);
+                }
+
+                lastWasLiteral = true;
+            } else {
+                // A literal followed by '+' is still part of the run, but may repeat
+                if (run.length() > required.length()) {
+                    required = run.toString();
+                }
+
+                run.setLength(0);
+
+                atStart = false;
+                lastWasLiteral = false;
+            }
+        }
+
+        if (run.length() > required.length()) {
+            required = run.toString();
+        }
+
+        return new RoutePattern(pattern, prefix.toString(), required, combinable);
+    }
+
+    /**
+     * Combines the given patterns into a single alternation, which matches if any of them does.
+     * The alternative that matched is returned by {@link #firstMatch(Pattern, int[], String)}.
+     *
+     * @param patterns Patterns that are {@link #combinable}
+     * @param groups   Receives the group index of each pattern in the combined pattern
+     */
+    static @NotNull Pattern combine(@NotNull List<RoutePattern> patterns, int[] groups) {
+        StringBuilder regex = new StringBuilder();
+        int group = 1;
+
+        for (int i = 0; i < patterns.size(); ++i) {
+            Pattern p = patterns.get(i).pattern;
+
+            if (i > 0) {
+                regex.append('|');
+            }
+
+            regex.append("((?").append(toInlineFlags(p.flags())).append(':').append(p.pattern()).append("))");
+
+            groups[i] = group;
+            group += 1 + p.matcher("").groupCount();
+        }
+
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return The index of the first pattern in the alternation matching the whole path or {@code -1}
+     */
+    static int firstMatch(@NotNull Pattern combined, int[] groups, @NotNull String path) {
+        Matcher matcher = combined.matcher(path);
+
+        if (matcher.matches()) {
+            for (int i = 0; i < groups.length; ++i) {
+                if (matcher.start(groups[i]) != -1) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private static @NotNull String toInlineFlags(int flags) {
+        StringBuilder result = new StringBuilder();
+
+        if ((flags & Pattern.CASE_INSENSITIVE) != 0) result.append('i');
+        if ((flags & Pattern.UNICODE_CASE) != 0) result.append('u');
+        if ((flags & Pattern.DOTALL) != 0) result.append('s');
+        if ((flags & Pattern.MULTILINE) != 0) result.append('m');
+        if ((flags & Pattern.UNIX_LINES) != 0) result.append('d');
+        if ((flags & Pattern.UNICODE_CHARACTER_CLASS) != 0) result.append('U');
+
+        return result.toString();
+    }
+
+    private static boolean hasInlineFlags(@NotNull String regex) {
+        for (int i = regex.indexOf("(?"); i != -1; i = regex.indexOf("(?", i + 2)) {
+            if (i + 2 < regex.length()) {
+                char c = regex.charAt(i + 2);
+
+                if (Character.isLetter(c) || c == '-') {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean hasBackReference(@NotNull String regex) {
+        for (int i = 0; i + 1 < regex.length(); ++i) {
+            if (regex.charAt(i) == '\\') {
+                char next = regex.charAt(i + 1);
+
+                if ((next >= '1' && next <= '9') || next == 'k') {
+                    return true;
+                }
+
+                ++i;    // Skip the escaped char
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The index after the escape sequence starting at {@code i}
+     */
+    private static int skipEscape(@NotNull String regex, int i) {
+        int end = i + 2;
+
+        // \p{...}, \x{...}, \N{...}
+        if (end < regex.length() && regex.charAt(end) == '{') {
+            int close = regex.indexOf('}', end);
+            end = close == -1 ? regex.length() : close + 1;
+        }
+
+        return end;
+    }
+
+    /**
+     * @return The index after the character class starting at {@code i}
+     */
+    private static int skipCharacterClass(@NotNull String regex, int i) {
+        int depth = 0;
+
+        for (int j = i; j < regex.length(); ++j) {
+            char c = regex.charAt(j);
+
+            if (c == '\\') {
+                ++j;
+            } else if (c == '[') {
+                ++depth;
+
+                // A ']' directly after '[' or '[^' is a literal
+                if (j + 1 < regex.length() && regex.charAt(j + 1) == '^') ++j;
+                if (j + 1 < regex.length() && regex.charAt(j + 1) == ']') ++j;
+            } else if (c == ']' && --depth == 0) {
+                return j + 1;
+            }
+        }
+
+        return regex.length();
+    }
+
+    /**
+     * @return The index after the quantifier starting at {@code i}, including a lazy or possessive modifier
+     */
+    private static int skipQuantifier(@NotNull String regex, int i) {
+        int end = i + 1;
+
+        if (regex.charAt(i) == '{') {
+            int close = regex.indexOf('}', i);
+            end = close == -1 ? regex.length() : close + 1;
+        }
+
+        if (end < regex.length() && (regex.charAt(end) == '?' || regex.charAt(end) == '+')) {
+            ++end;
+        }
+
+        return end;
+    }
+}
@@ -0,0 +1,554 @@
+package de.sprax2013.hems.webserver_new.http.router;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A radix tree over the case-folded paths of the middlewares, so a request path is walked once
+ * instead of being compared to every registered path.
+ * <br><br>
+ * String paths match every path starting with them, the paths of a collection only match exactly.
+ * Patterns are put into the tree using their literal prefix (see {@link RoutePattern}), so they are only evaluated
+ * for paths starting with it. Patterns without a prefix are combined into a single alternation, which is evaluated
+ * once to find the first one matching (if any).
+ * <br><br>
+ * Paths may contain parameters:
+ * <ul>
+ *     <li>{@code /user/:id} - A whole, non-empty segment</li>
+ *     <li>{@code /user/:id?} - An optional segment (matches {@code /user} too)</li>
+ *     <li>{@code /files/*} or {@code /files/*path} - Any number of characters, including {@code /}
+ *     (captured as {@code *}, if no name is given)</li>
+ * </ul>
+ * Captured values are only stored as offsets into the request path.
+ */
+final class RouteTrie {
+    /**
+     * Limits the number of variants a path is expanded to
+     */
+    private static final int MAX_OPTIONAL_PARAMS = 8;
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+    private static final String[] NO_PARAMS = new String[0];
+
+    private final Node root = new Node(new char[0]);
+
+    /**
+     * Patterns without a literal prefix
+     */
+    private Entry[] patterns = NO_ENTRIES;
+    private Pattern combinedPatterns;
+    private int[] combinedGroups;
+    /**
+     * The index of each pattern in {@link #combinedPatterns} or {@code -1}
+     */
+    private int[] combinedIndices;
+
+    private int maxParams;
+
+    /**
+     * @param order The position of the middleware in registration order
+     *
+     * @throws IllegalArgumentException if the path contains an invalid parameter
+     */
+    void add(int order, @NotNull Middleware middleware) {
+        Object path = middleware.getPath();
+
+        if (path instanceof Pattern) {
+            RoutePattern pattern = RoutePattern.of((Pattern) path);
+            Entry entry = new Entry(order, middleware, pattern);
+
+            if (pattern.prefix.isEmpty()) {
+                this.patterns = append(this.patterns, entry);
+                this.combinedPatterns = null;
+            } else {
+                Node node = insertLiteral(this.root, pattern.prefix, 0, pattern.prefix.length());
+                node.patternEntries = append(node.patternEntries, entry);
+            }
+
+            return;
+        }
+
+        boolean exact = !(path instanceof String);
+        Collection<?> paths = exact ? (Collection<?>) path : List.of(path);
+
+        // Shared by all paths without parameters, so paths only differing in case end up in a node only once
+        Entry plainEntry = new Entry(order, middleware, NO_PARAMS, null, null);
+
+        for (Object p : paths) {
+            for (String variant : expandOptionalParams((String) p)) {
+                List<String> paramNames = new ArrayList<>(0);
+                Node node = insert(variant, paramNames);
+
+                Entry entry = paramNames.isEmpty() ? plainEntry :
+                        new Entry(order, middleware, paramNames.toArray(NO_PARAMS), null, null);
+
+                this.maxParams = Math.max(this.maxParams, paramNames.size());
+
+                if (exact) {
+                    if (node.exactEntries.length == 0 || node.exactEntries[node.exactEntries.length - 1] != entry) {
+                        node.exactEntries = append(node.exactEntries, entry);
+                    }
+                } else {
+                    node.prefixEntries = append(node.prefixEntries, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds all middlewares matching the given path to {@code result}, in registration order.
+     * A middleware matching in multiple ways is only added once, preferring the match with the most parameters.
+     */
+    void collect(@NotNull String path, @NotNull List<Entry> result) {
+        int sizeBefore = result.size();
+
+        collect(this.root, path, 0, this.maxParams > 0 ? new int[this.maxParams * 2] : null, 0, result);
+
+        collectPatterns(path, result);
+
+        if (result.size() - sizeBefore > 1) {
+            sort(result, sizeBefore);
+            removeDuplicates(result, sizeBefore);
+        }
+    }
+
+    /**
+     * Combines the patterns without a prefix, once all middlewares have been added
+     */
+    void combinePatterns() {
+        List<RoutePattern> combinable = new ArrayList<>();
+        int[] indices = new int[this.patterns.length];
+
+        for (int i = 0; i < this.patterns.length; ++i) {
+            RoutePattern pattern = this.patterns[i].pattern;
+
+            indices[i] = pattern.combinable ? combinable.size() : -1;
+
+            if (pattern.combinable) {
+                combinable.add(pattern);
+            }
+        }
+
+        // A single pattern is evaluated on its own anyway
+        if (combinable.size() > 1) {
+            this.combinedGroups = new int[combinable.size()];
+            this.combinedIndices = indices;
+            this.combinedPatterns = RoutePattern.combine(combinable, this.combinedGroups);
+        }
+    }
+
+    private void collectPatterns(@NotNull String path, @NotNull List<Entry> result) {
+        Pattern combined = this.combinedPatterns;
+        int firstMatch = combined != null ? RoutePattern.firstMatch(combined, this.combinedGroups, path) : -1;
+
+        for (int i = 0; i < this.patterns.length; ++i) {
+            Entry entry = this.patterns[i];
+
+            if (combined != null && this.combinedIndices[i] != -1) {
+                // All combined patterns before the first match don't match
+                if (firstMatch == -1 || this.combinedIndices[i] < firstMatch) continue;
+
+                if (this.combinedIndices[i] == firstMatch) {
+                    result.add(entry);
+                    continue;
+                }
+            }
+
+            if (entry.pattern.matches(path)) {
+                result.add(entry);
+            }
+        }
+    }
+
+    private static void collect(@NotNull Node node, @NotNull String path, int pos, int[] captures, int captureCount,
+                                @NotNull List<Entry> result) {
+        addAll(result, node.prefixEntries, captures);
+
+        for (Entry entry : node.patternEntries) {
+            if (entry.pattern.matches(path)) {
+                result.add(entry);
+            }
+        }
+
+        if (pos == path.length()) {
+            addAll(result, node.exactEntries, captures);
+        } else {
+            collectChildren(node, path, pos, captures, captureCount, result);
+        }
+
+        if (node.wildcardChild != null) {
+            collectWildcard(node.wildcardChild, path, pos, captures, captureCount, result);
+        }
+    }
+
+    /**
+     * Continues with the literal child and the parameter child matching the path at {@code pos < path.length()}
+     */
+    private static void collectChildren(@NotNull Node node, @NotNull String path, int pos, int[] captures, int captureCount,
+                                        @NotNull List<Entry> result) {
+        Node child = node.getChild(fold(path.charAt(pos)));
+
+        if (child != null && child.matches(path, pos)) {
+            collect(child, path, pos + child.label.length, captures, captureCount, result);
+        }
+
+        if (node.paramChild != null && path.charAt(pos) != '/') {
+            int end = path.indexOf('/', pos);
+            if (end == -1) {
+                end = path.length();
+            }
+
+            captures[captureCount * 2] = pos;
+            captures[captureCount * 2 + 1] = end;
+
+            collect(node.paramChild, path, end, captures, captureCount + 1, result);
+        }
+    }
+
+    /**
+     * Matches a wildcard starting at {@code pos}, so the path is only walked once per wildcard
+     * instead of recursing for every possible length
+     */
+    private static void collectWildcard(@NotNull Node wildcard, @NotNull String path, int pos, int[] captures, int captureCount,
+                                        @NotNull List<Entry> result) {
+        captures[captureCount * 2] = pos;
+        captures[captureCount * 2 + 1] = path.length();
+
+        // Middlewares ending with the wildcard take the rest of the path
+        addAll(result, wildcard.prefixEntries, captures);
+        addAll(result, wildcard.exactEntries, captures);
+
+        for (Entry entry : wildcard.patternEntries) {
+            if (entry.pattern.matches(path)) {
+                result.add(entry);
+            }
+        }
+
+        if (wildcard.children.length == 0 && wildcard.paramChild == null) return;
+
+        // Longest match first, only continuing where the path continues with a child
+        for (int end = path.length() - 1; end >= pos; --end) {
+            char c = path.charAt(end);
+
+            if ((wildcard.paramChild != null && c != '/') || wildcard.getChild(fold(c)) != null) {
+                captures[captureCount * 2 + 1] = end;
+
+                collectChildren(wildcard, path, end, captures, captureCount + 1, result);
+            }
+        }
+    }
+
+    /**
+     * @param paramNames Receives the names of the parameters in the path
+     *
+     * @return The node the path ends in
+     */
+    private @NotNull Node insert(@NotNull String path, @NotNull List<String> paramNames) {
+        Node node = this.root;
+        int literalStart = 0;
+
+        for (int i = 0; i < path.length(); ++i) {
+            char c = path.charAt(i);
+
+            if (c == ':' && i > 0 && path.charAt(i - 1) == '/') {
+                int nameEnd = path.indexOf('/', i);
+                if (nameEnd == -1) {
+                    nameEnd = path.length();
+                }
+
+                node = insertLiteral(node, path, literalStart, i);
+
+                if (node.paramChild == null) {
+                    node.paramChild = new Node(null);
+                }
+
+                node = node.paramChild;
+                paramNames.add(getParamName(path, i + 1, nameEnd));
+
+                literalStart = nameEnd;
+                i = nameEnd - 1;
+            } else if (c == '*') {
+                // Consecutive wildcards are a single one, as the first one would match everything anyway
+                int nameStart = i + 1;
+                while (nameStart < path.length() && path.charAt(nameStart) == '*') ++nameStart;
+
+                int nameEnd = nameStart;
+                while (nameEnd < path.length() && isNameChar(path.charAt(nameEnd))) ++nameEnd;
+
+                node = insertLiteral(node, path, literalStart, i);
+
+                if (node.wildcardChild == null) {
+                    node.wildcardChild = new Node(null);
+                }
+
+                node = node.wildcardChild;
+                paramNames.add(nameEnd > nameStart ? path.substring(nameStart, nameEnd) : "*");
+
+                literalStart = nameEnd;
+                i = nameEnd - 1;
+            }
+        }
+
+        return insertLiteral(node, path, literalStart, path.length());
+    }
+
+    private static @NotNull Node insertLiteral(@NotNull Node node, @NotNull String path, int start, int end) {
+        char[] key = fold(path.substring(start, end));
+        int pos = 0;
+
+        while (pos < key.length) {
+            Node child = node.getChild(key[pos]);
+
+            if (child == null) {
+                child = new Node(Arrays.copyOfRange(key, pos, key.length));
+                node.addChild(child);
+
+                return child;
+            }
+
+            int common = 0;
+            while (common < child.label.length && pos + common < key.length &&
+                    child.label[common] == key[pos + common]) {
+                ++common;
+            }
+
+            if (common < child.label.length) {
+                child = node.split(child, common);
+            }
+
+            pos += common;
+            node = child;
+        }
+
+        return node;
+    }
+
+    /**
+     * Expands a path with optional parameters into all paths it matches
+     * (e.g. {@code /a/:b?/c} into {@code /a/c} and {@code /a/:b/c})
+     */
+    private static @NotNull List<String> expandOptionalParams(@NotNull String path) {
+        if (path.indexOf('?') == -1) {
+            return List.of(path);
+        }
+
+        String[] segments = path.substring(1).split("/", -1);
+        List<Integer> optional = new ArrayList<>();
+
+        for (int i = 0; i < segments.length; ++i) {
+            if (segments[i].startsWith(":") && segments[i].endsWith("?")) {
+                optional.add(i);
+                segments[i] = segments[i].substring(0, segments[i].length() - 1);
+            }
+        }
+
+        if (optional.size() > MAX_OPTIONAL_PARAMS) {
+            throw new IllegalArgumentException("A path may not contain more than " + MAX_OPTIONAL_PARAMS + " optional parameters");
+        }
+
+        List<String> result = new ArrayList<>(1 << optional.size());
+
+        for (int mask = 0; mask < 1 << optional.size(); ++mask) {
+            StringBuilder variant = new StringBuilder(path.length());
+
+            for (int i = 0; i < segments.length; ++i) {
+                int optionalIndex = optional.indexOf(i);
+
+                if (optionalIndex == -1 || (mask & (1 << optionalIndex)) != 0) {
+                    variant.append('/').append(segments[i]);
+                }
+            }
+
+            result.add(variant.length() == 0 ? "/" : variant.toString());
+        }
+
+        return result;
+    }
+
+    private static @NotNull String getParamName(@NotNull String path, int start, int end) {
+        if (start == end) {
+            throw new IllegalArgumentException("Missing parameter name in path '" + path + "'");
+        }
+
+        for (int i = start; i < end; ++i) {
+            if (!isNameChar(path.charAt(i))) {
+                throw new IllegalArgumentException("Invalid parameter name in path '" + path + "'");
+            }
+        }
+
+        return path.substring(start, end);
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static void addAll(@NotNull List<Entry> result, Entry[] entries, int[] captures) {
+        for (Entry entry : entries) {
+            if (entry.paramNames.length == 0) {
+                result.add(entry);
+            } else {
+                result.add(new Entry(entry.order, entry.middleware, entry.paramNames,
+                        Arrays.copyOf(captures, entry.paramNames.length * 2), null));
+            }
+        }
+    }
+
+    /**
+     * Insertion sort, as there are only a few matches and most of them are in order already
+     */
+    private static void sort(@NotNull List<Entry> entries, int from) {
+        for (int i = from + 1; i < entries.size(); ++i) {
+            Entry entry = entries.get(i);
+
+            int j = i - 1;
+            while (j >= from && entries.get(j).order > entry.order) {
+                entries.set(j + 1, entries.get(j));
+                --j;
+            }
+
+            entries.set(j + 1, entry);
+        }
+    }
+
+    /**
+     * Keeps a single match per middleware (there may be multiple for optional parameters and wildcards)
+     */
+    private static void removeDuplicates(@NotNull List<Entry> entries, int from) {
+        int last = from;
+
+        for (int i = from + 1; i < entries.size(); ++i) {
+            Entry entry = entries.get(i);
+
+            if (entry.order != entries.get(last).order) {
+                entries.set(++last, entry);
+            } else if (entry.paramNames.length > entries.get(last).paramNames.length) {
+                entries.set(last, entry);
+            }
+        }
+
+        while (entries.size() > last + 1) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+
+    private static Entry[] append(Entry[] entries, @NotNull Entry entry) {
+        Entry[] result = Arrays.copyOf(entries, entries.length + 1);
+        result[entries.length] = entry;
+
+        return result;
+    }
+
+    private static char[] fold(@NotNull String s) {
+        char[] result = new char[s.length()];
+
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = fold(s.charAt(i));
+        }
+
+        return result;
+    }
+
+    /**
+     * Folds the case the same way {@link String#equalsIgnoreCase(String)} does
+     */
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    static final class Entry {
+        final int order;
+        final Middleware middleware;
+
+        final String[] paramNames;
+        /**
+         * The start and end index of each parameter's value in the matched path
+         */
+        final int[] paramOffsets;
+
+        final RoutePattern pattern;
+
+        private Entry(int order, @NotNull Middleware middleware, @NotNull RoutePattern pattern) {
+            this(order, middleware, NO_PARAMS, null, pattern);
+        }
+
+        private Entry(int order, @NotNull Middleware middleware, String[] paramNames, int[] paramOffsets,
+                      RoutePattern pattern) {
+            this.order = order;
+            this.middleware = middleware;
+            this.paramNames = paramNames;
+            this.paramOffsets = paramOffsets;
+            this.pattern = pattern;
+        }
+    }
+
+    private static final class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        /**
+         * {@code null} for parameters and wildcards
+         */
+        private char[] label;
+        private Node[] children = NO_CHILDREN;
+        private Node paramChild;
+        private Node wildcardChild;
+
+        private Entry[] prefixEntries = NO_ENTRIES;
+        private Entry[] exactEntries = NO_ENTRIES;
+        private Entry[] patternEntries = NO_ENTRIES;
+
+        private Node(char[] label) {
+            this.label = label;
+        }
+
+        private Node getChild(char c) {
+            for (Node child : this.children) {
+                if (child.label[0] == c) return child;
+            }
+
+            return null;
+        }
+
+        private void addChild(@NotNull Node child) {
+            this.children = Arrays.copyOf(this.children, this.children.length + 1);
+            this.children[this.children.length - 1] = child;
+        }
+
+        /**
+         * Inserts a new node holding the first {@code length} chars of the given child's label between them
+         *
+         * @return The new node
+         */
+        private @NotNull Node split(@NotNull Node child, int length) {
+            Node node = new Node(Arrays.copyOf(child.label, length));
+            child.label = Arrays.copyOfRange(child.label, length, child.label.length);
+            node.children = new Node[] {child};
+
+            for (int i = 0; i < this.children.length; ++i) {
+                if (this.children[i] == child) {
+                    this.children[i] = node;
+                }
+            }
+
+            return node;
+        }
+
+        /**
+         * @return true, if the path continues with this node's whole label at {@code pos}
+         */
+        private boolean matches(@NotNull String path, int pos) {
+            if (path.length() - pos < this.label.length) return false;
+
+            for (int i = 1; i < this.label.length; ++i) {
+                if (fold(path.charAt(pos + i)) != this.label[i]) return false;
+            }
+
+            return true;
+        }
+    }
+}
@@ -2,33 +2,100 @@ package de.sprax2013.hems.webserver_new.http.router;
 
 import de.sprax2013.hems.webserver_new.http.HemsWebServer;
 import de.sprax2013.hems.webserver_new.http.HttpMethod;
+import de.sprax2013.hems.webserver_new.http.HttpPath;
 import de.sprax2013.hems.webserver_new.http.WebRequest;
 import de.sprax2013.hems.webserver_new.http.WebResponse;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 @SuppressWarnings({"UnusedReturnValue", "unused"})
 public class Router implements RouteCallback {
-    private final List<Middleware> middlewares = new LinkedList<>();
-    private final List<Middleware> errorMiddlewares = new LinkedList<>();
-//    private final List<Middleware> paramMiddlewares = new LinkedList<>();
+    /**
+     * Replaced as a whole whenever a middleware is added or removed, so requests can be routed without locking
+     * while the routes are changed
+     */
+    private volatile CompiledRoutes routes = new CompiledRoutes(List.of(), List.of(), Map.of());
 
     protected List<Middleware> getMiddlewares() {
-        return middlewares;
+        return this.routes.middlewares;
     }
 
     protected List<Middleware> getErrorMiddlewares() {
-        return errorMiddlewares;
+        return this.routes.errorMiddlewares;
+    }
+
+    /**
+     * The callback is invoked once per request, before the first middleware with the given parameter in its path
+     * (e.g. to load the user for {@code /user/:id}).
+     *
+     * @param param      The name of the parameter
+     * @param middleware A middleware - if it returns true, the request has been fulfilled and no other middleware is called
+     *
+     * @return The same {@link Router} instance for chaining
+     */
+    public synchronized Router param(@NotNull String param, @NotNull RouteCallback middleware) {
+        Map<String, List<RouteCallback>> paramCallbacks = new HashMap<>(this.routes.paramCallbacks);
+
+        List<RouteCallback> callbacks = new ArrayList<>(paramCallbacks.getOrDefault(param, List.of()));
+        callbacks.add(Objects.requireNonNull(middleware));
+        paramCallbacks.put(param, callbacks);
+
+        this.routes = new CompiledRoutes(this.routes.middlewares, this.routes.errorMiddlewares, paramCallbacks);
+
+        return this;
     }
 
-    public Router param(@NotNull String param, @NotNull RouteCallback middleware) {
-        throw new UnsupportedOperationException("Not implemented yet");
+    /* remove */
+
+    /**
+     * Removes all middlewares and {@link #param(String, RouteCallback)} callbacks using the given callback.
+     * Requests already being routed are not affected.
+     *
+     * @param middleware A middleware
+     *
+     * @return The same {@link Router} instance for chaining
+     */
+    public synchronized Router remove(@NotNull RouteCallback middleware) {
+        Map<String, List<RouteCallback>> paramCallbacks = new HashMap<>();
+
+        for (Map.Entry<String, List<RouteCallback>> entry : this.routes.paramCallbacks.entrySet()) {
+            List<RouteCallback> callbacks = new ArrayList<>(entry.getValue());
+            callbacks.remove(middleware);
+
+            if (!callbacks.isEmpty()) {
+                paramCallbacks.put(entry.getKey(), callbacks);
+            }
+        }
+
+        this.routes = new CompiledRoutes(without(this.routes.middlewares, middleware), this.routes.errorMiddlewares, paramCallbacks);
+
+        return this;
+    }
+
+    /**
+     * Removes all error handling middlewares using the given callback.
+     * Requests already being routed are not affected.
+     *
+     * @param middleware A middleware
+     *
+     * @return The same {@link Router} instance for chaining
+     */
+    public synchronized Router remove(@NotNull RouteExceptionCallback middleware) {
+        this.routes = new CompiledRoutes(this.routes.middlewares, without(this.routes.errorMiddlewares, middleware),
+                this.routes.paramCallbacks);
+
+        return this;
     }
 
     /* use */
@@ -284,63 +351,42 @@ public class Router implements RouteCallback {
 
     @Override
     public boolean call(@NotNull WebRequest req, @NotNull WebResponse res) {
-        final Path startPath = Path.of(req.getPath());
+        final String startPath = req.getPath();
+        final CompiledRoutes routes = this.routes;
+        final List<String> calledParams = new ArrayList<>(0);
 
         boolean middlewareSuccess = false;
 
         try {
-            for (Middleware m : getMiddlewares()) {
-                if (m.matchesMethod(req.getMethod()) &&
-                        m.matchesPath(req.getPath(), false /* TODO */)) {
-                    if (!(m.getPath() instanceof String && m.getPath().equals("/"))) {
-                        if (startPath.getNameCount() > 1) {
-                            req.setPath(startPath.subpath(1, startPath.getNameCount()).toString());
-                        } else if (startPath.getNameCount() == 1) {
-                            req.setPath("/");
-                        }
-                    }
+            for (RouteTrie.Entry e : routes.match(req, startPath)) {
+                Middleware m = e.middleware;
 
-                    if (m.getCallback().call(req, res)) {
-                        middlewareSuccess = true;
+                req.setParams(startPath, e.paramNames, e.paramOffsets);
 
-                        break;
-                    }
+                if (routes.callParamCallbacks(e, req, res, calledParams)) {
+                    middlewareSuccess = true;
 
-                    req.setPath(startPath.toString());
+                    break;
                 }
-            }
 
-            // Automatically handle HEAD request
-            if (!middlewareSuccess && req.getMethod().equals(HttpMethod.HEAD.name())) {
-                for (Middleware m : getMiddlewares()) {
-                    if ("GET".equals(m.getMethod()) &&
-                            m.matchesPath(req.getPath(), false /* TODO */)) {
-                        if (startPath.getNameCount() > 1) {
-                            req.setPath(startPath.subpath(1, startPath.getNameCount()).toString());
-                        } else if (startPath.getNameCount() == 1) {
-                            req.setPath("/");
-                        }
-
-                        if (m.getCallback().call(req, res)) {
-                            middlewareSuccess = true;
+                if (!(m.getPath() instanceof String && m.getPath().equals("/"))) {
+                    req.setPath(HttpPath.stripFirstSegment(startPath));
+                }
 
-                            break;
-                        }
+                if (m.getCallback().call(req, res)) {
+                    middlewareSuccess = true;
 
-                        req.setPath(startPath.toString());
-                    }
+                    break;
                 }
+
+                req.setPath(startPath);
             }
         } catch (Exception ex) {
-            for (Middleware m : getErrorMiddlewares()) {
-                if (m.matchesMethod(req.getMethod())) {
-                    if (m.matchesPath(req.getPath(), false /* TODO */)) {
-                        if (m.getErrorCallback().call(req, res, ex)) {
-                            middlewareSuccess = true;
+            for (RouteTrie.Entry e : routes.matchError(startPath)) {
+                if (e.middleware.getErrorCallback().call(req, res, ex)) {
+                    middlewareSuccess = true;
 
-                            break;
-                        }
-                    }
+                    break;
                 }
             }
 
@@ -348,7 +394,7 @@ public class Router implements RouteCallback {
                 throw ex;
             }
         } finally {
-            req.setPath(startPath.toString());
+            req.setPath(startPath);
         }
 
         return true;
@@ -356,19 +402,190 @@ public class Router implements RouteCallback {
 
     /* Utility */
 
-    private void registerErrorMiddleware(@NotNull Object path, @NotNull RouteExceptionCallback middleware) {
-        this.errorMiddlewares.add(new Middleware(null, path, middleware));
+    private synchronized void registerErrorMiddleware(@NotNull Object path, @NotNull RouteExceptionCallback middleware) {
+        this.routes = new CompiledRoutes(this.routes.middlewares,
+                with(this.routes.errorMiddlewares, new Middleware(null, path, middleware)), this.routes.paramCallbacks);
     }
 
-    private void registerMiddleware(@Nullable String method, @NotNull Object path, @NotNull RouteCallback middleware) {
+    private synchronized void registerMiddleware(@Nullable String method, @NotNull Object path, @NotNull RouteCallback middleware) {
         if (middleware instanceof HemsWebServer) {
             throw new IllegalArgumentException("Please use a normal Router instead of an '" + HemsWebServer.class.getName() + "' instance");
         }
 
-        this.middlewares.add(new Middleware(method, path, middleware));
+        // Compiling the new routes fails for invalid paths, keeping the current ones
+        this.routes = new CompiledRoutes(with(this.routes.middlewares, new Middleware(method, path, middleware)),
+                this.routes.errorMiddlewares, this.routes.paramCallbacks);
     }
 
     private void registerMiddleware(@NotNull HttpMethod method, @NotNull Object path, @NotNull RouteCallback middleware) {
         registerMiddleware(method.name(), path, middleware);
     }
-}
\ No newline at end of file
+
+    private static @NotNull List<Middleware> with(@NotNull List<Middleware> middlewares, @NotNull Middleware middleware) {
+        List<Middleware> result = new ArrayList<>(middlewares.size() + 1);
+        result.addAll(middlewares);
+        result.add(middleware);
+
+        return result;
+    }
+
+    private static @NotNull List<Middleware> without(@NotNull List<Middleware> middlewares, @NotNull IRouteCallback callback) {
+        List<Middleware> result = new ArrayList<>(middlewares.size());
+
+        for (Middleware m : middlewares) {
+            if (!m.hasCallback(callback)) {
+                result.add(m);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * An immutable snapshot of the middlewares of a {@link Router}, sorted into one {@link RouteTrie} per method,
+     * so a request only has to be matched against a single one
+     */
+    private static final class CompiledRoutes {
+        private final List<Middleware> middlewares;
+        private final List<Middleware> errorMiddlewares;
+
+        private final Map<HttpMethod, RouteTrie> byMethod = new EnumMap<>(HttpMethod.class);
+        /**
+         * Methods that are not part of {@link HttpMethod} (see {@link #method(String, String, RouteCallback)})
+         */
+        private final Map<String, RouteTrie> byCustomMethod = new HashMap<>();
+        /**
+         * Middlewares for any method, used for methods no middleware has been registered for
+         */
+        private final RouteTrie anyMethod = new RouteTrie();
+        private final RouteTrie errors = new RouteTrie();
+        private final Map<String, List<RouteCallback>> paramCallbacks = new HashMap<>();
+
+        private CompiledRoutes(@NotNull List<Middleware> middlewares, @NotNull List<Middleware> errorMiddlewares,
+                               @NotNull Map<String, List<RouteCallback>> paramCallbacks) {
+            this.middlewares = List.copyOf(middlewares);
+            this.errorMiddlewares = List.copyOf(errorMiddlewares);
+
+            for (Map.Entry<String, List<RouteCallback>> entry : paramCallbacks.entrySet()) {
+                this.paramCallbacks.put(entry.getKey(), List.copyOf(entry.getValue()));
+            }
+
+            Set<String> methods = new HashSet<>();
+            for (Middleware m : middlewares) {
+                if (m.getMethod() != null) {
+                    methods.add(m.getMethod());
+                }
+            }
+
+            // HEAD requests are answered by GET middlewares too
+            boolean hasGet = methods.contains(HttpMethod.GET.name());
+
+            // Tries for methods without own middlewares share the one for any method
+            List<RouteTrie> ownTries = new ArrayList<>();
+
+            for (HttpMethod method : HttpMethod.values()) {
+                if (methods.remove(method.name()) || (method == HttpMethod.HEAD && hasGet)) {
+                    RouteTrie trie = new RouteTrie();
+
+                    this.byMethod.put(method, trie);
+                    ownTries.add(trie);
+                } else {
+                    this.byMethod.put(method, this.anyMethod);
+                }
+            }
+
+            for (String method : methods) {
+                RouteTrie trie = new RouteTrie();
+
+                this.byCustomMethod.put(method, trie);
+                ownTries.add(trie);
+            }
+
+            for (int i = 0; i < middlewares.size(); ++i) {
+                Middleware m = middlewares.get(i);
+
+                if (m.getMethod() == null) {
+                    this.anyMethod.add(i, m);
+
+                    for (RouteTrie trie : ownTries) {
+                        trie.add(i, m);
+                    }
+                } else {
+                    HttpMethod method = toHttpMethod(m.getMethod());
+                    (method != null ? this.byMethod.get(method) : this.byCustomMethod.get(m.getMethod())).add(i, m);
+
+                    if (method == HttpMethod.GET) {
+                        // Only tried after all HEAD middlewares, as if there were a second pass
+                        this.byMethod.get(HttpMethod.HEAD).add(middlewares.size() + i, m);
+                    }
+                }
+            }
+
+            for (int i = 0; i < errorMiddlewares.size(); ++i) {
+                this.errors.add(i, errorMiddlewares.get(i));
+            }
+
+            for (RouteTrie trie : ownTries) {
+                trie.combinePatterns();
+            }
+
+            this.anyMethod.combinePatterns();
+            this.errors.combinePatterns();
+        }
+
+        private @NotNull List<RouteTrie.Entry> match(@NotNull WebRequest req, @NotNull String path) {
+            HttpMethod method = req.getHttpMethod();
+
+            return collect(method != null ? this.byMethod.get(method) :
+                    this.byCustomMethod.getOrDefault(req.getMethod(), this.anyMethod), path);
+        }
+
+        private @NotNull List<RouteTrie.Entry> matchError(@NotNull String path) {
+            return collect(this.errors, path);
+        }
+
+        private static @Nullable HttpMethod toHttpMethod(@NotNull String method) {
+            for (HttpMethod m : HttpMethod.values()) {
+                if (m.name().equals(method)) {
+                    return m;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Calls the {@link #param(String, RouteCallback)} callbacks for the parameters of the given match,
+         * that have not been called for this request yet
+         *
+         * @return true, if a callback fulfilled the request
+         */
+        private boolean callParamCallbacks(@NotNull RouteTrie.Entry e, @NotNull WebRequest req, @NotNull WebResponse res,
+                                           @NotNull List<String> calledParams) {
+            if (this.paramCallbacks.isEmpty()) return false;
+
+            for (String param : e.paramNames) {
+                List<RouteCallback> callbacks = this.paramCallbacks.get(param);
+
+                if (callbacks != null && !calledParams.contains(param)) {
+                    calledParams.add(param);
+
+                    for (RouteCallback callback : callbacks) {
+                        if (callback.call(req, res)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private static @NotNull List<RouteTrie.Entry> collect(@NotNull RouteTrie trie, @NotNull String path) {
+            List<RouteTrie.Entry> result = new ArrayList<>(4);
+            trie.collect(path, result);
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package de.sprax2013.hems.webserver_new.routes;
+
+import de.sprax2013.hems.webserver_new.http.HttpUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps compressed variants of static files, so they are compressed once instead of on every request
+ * (e.g. for {@link ServingRoute#setCompressionCache(CompressedVariantCache)}).
+ * <br><br>
+ * Variants are keyed by the file, its last modification time and the content-coding,
+ * so a changed file simply gets a new entry while the outdated one is evicted eventually.
+ * A precompressed sibling file (e.g. {@code app.js.gz}) is preferred over compressing the file itself.
+ * Files that don't get any smaller are remembered too, so they are not compressed over and over again.
+ * Entries are evicted in least-recently-used order once the total size exceeds the configured budget.
+ * Concurrent requests for a missing variant wait for a single thread to load it, instead of all compressing the file.
+ */
+public class CompressedVariantCache {
+    public static final long DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private final LruCache<Key, Variant> entries;
+    private long maxEntrySize;
+
+    /**
+     * Variants currently being loaded, guarded by {@code this}
+     */
+    private final Map<Key, CompletableFuture<Variant>> loading = new HashMap<>();
+
+    /**
+     * @param maxSize The maximum number of compressed bytes that should be cached in total
+     */
+    public CompressedVariantCache(long maxSize) {
+        this.entries = new LruCache<>(maxSize, Variant::getSize);
+        this.maxEntrySize = Math.min(DEFAULT_MAX_ENTRY_SIZE, maxSize);
+    }
+
+    /**
+     * Returns the variant of the given file for the given content-coding, compressing it if necessary.
+     *
+     * @param file         The file to get the variant for
+     * @param lastModified The file's last modification time in milliseconds since the epoch
+     * @param encoding     {@code gzip} or {@code deflate}
+     * @param level        The compression level used, if the file has to be compressed
+     * @param data         The file's contents, if already at hand (otherwise they are read from disk when needed)
+     *
+     * @return The variant or {@code null} if the file is too large or can't be read
+     */
+    public @Nullable Variant get(@NotNull Path file, long lastModified, @NotNull String encoding, int level, @Nullable byte[] data) {
+        Key key = new Key(file, lastModified, encoding);
+
+        Variant variant;
+        CompletableFuture<Variant> pending;
+        boolean loader = false;
+
+        synchronized (this) {
+            variant = this.entries.get(key);
+
+            if (variant != null) {
+                pending = null;
+            } else {
+                pending = this.loading.get(key);
+
+                if (pending == null) {
+                    pending = new CompletableFuture<>();
+                    this.loading.put(key, pending);
+
+                    loader = true;
+                }
+            }
+        }
+
+        if (!loader) {
+            this.entries.recordHit();
+
+            // Another thread is loading the variant already
+            return variant != null ? variant : pending.join();
+        }
+
+        this.entries.recordMiss();
+
+        try {
+            variant = load(file, lastModified, encoding, level, data);
+        } finally {
+            synchronized (this) {
+                if (variant != null) {
+                    this.entries.put(key, variant);
+                }
+
+                this.loading.remove(key);
+            }
+
+            pending.complete(variant);
+        }
+
+        return variant;
+    }
+
+    /**
+     * Removes the variant of the given file for the given content-coding (e.g. because its precompressed sibling
+     * could not be read), so it is loaded again on the next request
+     */
+    public void remove(@NotNull Path file, long lastModified, @NotNull String encoding) {
+        this.entries.remove(new Key(file, lastModified, encoding));
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    public long getMaxSize() {
+        return this.entries.getMaxSize();
+    }
+
+    public long getMaxEntrySize() {
+        return this.maxEntrySize;
+    }
+
+    /**
+     * @param maxEntrySize The maximum size in bytes a file may have to be compressed and cached
+     *
+     * @return The same {@link CompressedVariantCache} instance for chaining
+     */
+    public CompressedVariantCache setMaxEntrySize(long maxEntrySize) {
+        if (maxEntrySize <= 0) {
+            throw new IllegalArgumentException("maxEntrySize has to be greater than 0");
+        }
+
+        this.maxEntrySize = maxEntrySize;
+
+        return this;
+    }
+
+    /**
+     * @return The number of compressed bytes currently cached
+     */
+    public long getSize() {
+        return this.entries.getSize();
+    }
+
+    public int getEntryCount() {
+        return this.entries.getEntryCount();
+    }
+
+    public long getHits() {
+        return this.entries.getHits();
+    }
+
+    public long getMisses() {
+        return this.entries.getMisses();
+    }
+
+    /**
+     * @return The number of entries removed to stay within {@link #getMaxSize()}
+     */
+    public long getEvictions() {
+        return this.entries.getEvictions();
+    }
+
+    private @Nullable Variant load(@NotNull Path file, long lastModified, @NotNull String encoding, int level, @Nullable byte[] data) {
+        try {
+            if (encoding.equals("gzip")) {
+                Path sibling = file.resolveSibling(file.getFileName() + ".gz");
+
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(sibling, BasicFileAttributes.class);
+
+                    // An outdated sibling is ignored
+                    if (attributes.isRegularFile() && attributes.lastModifiedTime().toMillis() >= lastModified) {
+                        return new Variant(encoding, null, sibling);
+                    }
+                } catch (IOException ignore) {
+                    // There is no precompressed sibling
+                }
+            }
+
+            if (data == null) {
+                if (Files.size(file) > this.maxEntrySize) return null;
+
+                data = Files.readAllBytes(file);
+            } else if (data.length > this.maxEntrySize) {
+                return null;
+            }
+
+            // null, if the file does not get any smaller
+            return new Variant(encoding, HttpUtils.compress(data, encoding, level), null);
+        } catch (IOException ignore) {
+            return null;    // Let the caller serve the file uncompressed
+        }
+    }
+
+    private static final class Key {
+        private final Path file;
+        private final long lastModified;
+        private final String encoding;
+
+        private Key(@NotNull Path file, long lastModified, @NotNull String encoding) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return this.lastModified == key.lastModified &&
+                    this.file.equals(key.file) &&
+                    this.encoding.equals(key.encoding);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.file, this.lastModified, this.encoding);
+        }
+    }
+
+    public static final class Variant {
+        private final String encoding;
+        private final byte[] data;
+        private final Path file;
+
+        private Variant(@NotNull String encoding, @Nullable byte[] data, @Nullable Path file) {
+            this.encoding = encoding;
+            this.data = data;
+            this.file = file;
+        }
+
+        public @NotNull String getEncoding() {
+            return this.encoding;
+        }
+
+        /**
+         * @return The compressed contents (shared - must not be modified) or {@code null} if there are none
+         */
+        public @Nullable byte[] getData() {
+            return this.data;
+        }
+
+        /**
+         * @return The precompressed sibling file or {@code null} if there is none
+         */
+        public @Nullable Path getFile() {
+            return this.file;
+        }
+
+        /**
+         * @return true, if the file is not worth compressing and should be sent as is
+         */
+        public boolean isIdentity() {
+            return this.data == null && this.file == null;
+        }
+
+        private long getSize() {
+            // Count identity and file entries too, so their number stays bounded
+            return this.data != null ? this.data.length : 64;
+        }
+    }
+}
@@ -8,13 +8,11 @@ import de.sprax2013.hems.webserver_new.http.router.RouteCallback;
 import org.apache.commons.text.StringEscapeUtils;
 import org.jetbrains.annotations.NotNull;
 
-import java.time.LocalDateTime;
 import java.util.Map;
 
 public class DebugRoute implements RouteCallback {
     @Override
     public boolean call(@NotNull WebRequest req, @NotNull WebResponse res) {
-        res.setDate(LocalDateTime.now());
         res.setStatus(HttpStatusCode.OK);
 
         // Try up to 14 times to get the right Content-Length header printed into the HTML (takes 3 iterations on average)
@@ -38,7 +36,7 @@ public class DebugRoute implements RouteCallback {
                     "<strong>Path:</strong> " + StringEscapeUtils.escapeHtml4(req.getPath()) + "<br>" +
                     "<strong>Headers:</strong> " + (reqHeaders.isEmpty() ? "<em>None</em>" : toHtmlUl(reqHeaders, true)) + "<br>" +
                     "<strong>Query-Arguments:</strong> " + (reqQueryArgs.isEmpty() ? "<em>None</em>" : toHtmlUl(reqQueryArgs, false)) + "<br>" +
-                    "<strong>Body-Size:</strong> " + req.getBody().length +
+                    "<strong>Body-Size:</strong> " + req.getRequestBody().getLength() +
 
                     "<hr>" +
 
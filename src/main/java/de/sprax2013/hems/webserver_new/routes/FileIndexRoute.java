@@ -7,13 +7,14 @@ import de.sprax2013.hems.webserver_new.http.router.RouteCallback;
 import org.apache.commons.text.StringEscapeUtils;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 public class FileIndexRoute implements RouteCallback {
@@ -90,17 +91,15 @@ public class FileIndexRoute implements RouteCallback {
                     res.setStatus(HttpStatusCode.OK)
                             .setHTML(body.replace("${FileIndex}", fileIndex.toString()));
                 } else {
-                    try {
-                        byte[] fileData = Files.readAllBytes(file.toPath());
-
+                    try (InputStream fIn = new BufferedInputStream(new FileInputStream(file))) {
                         String contentType = URLConnection.guessContentTypeFromName(file.getName());
                         if (contentType == null) {
-                            contentType = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(fileData));
+                            contentType = URLConnection.guessContentTypeFromStream(fIn);
                         }
 
                         res.setStatus(HttpStatusCode.OK)
                                 .setContentType(contentType)
-                                .setBody(fileData);
+                                .setFile(file.toPath());
                     } catch (IOException ex) {
                         ex.printStackTrace();
 
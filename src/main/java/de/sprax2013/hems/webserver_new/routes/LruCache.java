@@ -0,0 +1,121 @@
+package de.sprax2013.hems.webserver_new.routes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe map evicting its entries in least-recently-used order once their total size exceeds a budget,
+ * keeping the statistics shared by {@link StaticFileCache} and {@link CompressedVariantCache}.
+ */
+final class LruCache<K, V> {
+    private final long maxSize;
+    private final ToLongFunction<V> sizeOf;
+
+    /**
+     * Access-ordered, so iteration starts at the least recently used entry
+     */
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize The maximum total size of all entries
+     * @param sizeOf  Returns the size an entry counts towards {@code maxSize}
+     */
+    LruCache(long maxSize, @NotNull ToLongFunction<V> sizeOf) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize has to be greater than 0");
+        }
+
+        this.maxSize = maxSize;
+        this.sizeOf = sizeOf;
+    }
+
+    synchronized @Nullable V get(@NotNull K key) {
+        return this.entries.get(key);
+    }
+
+    /**
+     * Adds or replaces an entry and evicts the least recently used ones, until the budget is met again
+     */
+    synchronized void put(@NotNull K key, @NotNull V value) {
+        V previous = this.entries.put(key, value);
+        if (previous != null) {
+            this.size -= this.sizeOf.applyAsLong(previous);
+        }
+
+        this.size += this.sizeOf.applyAsLong(value);
+
+        Iterator<Map.Entry<K, V>> it = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && it.hasNext()) {
+            V eldest = it.next().getValue();
+            it.remove();
+
+            this.size -= this.sizeOf.applyAsLong(eldest);
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    synchronized void remove(@NotNull K key) {
+        V value = this.entries.remove(key);
+
+        if (value != null) {
+            this.size -= this.sizeOf.applyAsLong(value);
+        }
+    }
+
+    /**
+     * Removes the entry only if it is still mapped to the given value
+     */
+    synchronized void remove(@NotNull K key, @NotNull V value) {
+        if (this.entries.remove(key, value)) {
+            this.size -= this.sizeOf.applyAsLong(value);
+        }
+    }
+
+    synchronized void clear() {
+        this.entries.clear();
+        this.size = 0;
+    }
+
+    void recordHit() {
+        this.hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        this.misses.incrementAndGet();
+    }
+
+    long getMaxSize() {
+        return this.maxSize;
+    }
+
+    synchronized long getSize() {
+        return this.size;
+    }
+
+    synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    long getHits() {
+        return this.hits.get();
+    }
+
+    long getMisses() {
+        return this.misses.get();
+    }
+
+    long getEvictions() {
+        return this.evictions.get();
+    }
+}
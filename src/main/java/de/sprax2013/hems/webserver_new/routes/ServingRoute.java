@@ -1,11 +1,18 @@
 package de.sprax2013.hems.webserver_new.routes;
 
 import de.sprax2013.hems.webserver.HttpStatusCode;
+import de.sprax2013.hems.webserver_new.http.ByteRangesWriter;
+import de.sprax2013.hems.webserver_new.http.CompressionPolicy;
+import de.sprax2013.hems.webserver_new.http.FileRegion;
+import de.sprax2013.hems.webserver_new.http.HttpDate;
+import de.sprax2013.hems.webserver_new.http.HttpMethod;
+import de.sprax2013.hems.webserver_new.http.HttpRange;
 import de.sprax2013.hems.webserver_new.http.HttpUtils;
 import de.sprax2013.hems.webserver_new.http.WebRequest;
 import de.sprax2013.hems.webserver_new.http.WebResponse;
 import de.sprax2013.hems.webserver_new.http.router.RouteCallback;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -13,61 +20,184 @@ import java.io.IOException;
 import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
 
 public class ServingRoute implements RouteCallback {
     private final Path path;
+    private StaticFileCache cache;
+    private CompressedVariantCache compressionCache;
+
+    private boolean weakETags;
+    private String defaultCacheControl;
+    private final Map<Pattern, String> cacheControls = new LinkedHashMap<>();
 
     public ServingRoute(@NotNull File file) {
         this.path = file.toPath().normalize();
     }
 
+    public @Nullable StaticFileCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * @param cache The cache used to serve files without accessing the disk, {@code null} to disable caching
+     *
+     * @return The same {@link ServingRoute} instance for chaining
+     */
+    public ServingRoute setCache(@Nullable StaticFileCache cache) {
+        this.cache = cache;
+
+        return this;
+    }
+
+    public @Nullable CompressedVariantCache getCompressionCache() {
+        return this.compressionCache;
+    }
+
+    /**
+     * @param compressionCache The cache used to serve compressed files without compressing them on every request,
+     *                         {@code null} to only compress files held by {@link #getCache()} (on every request)
+     *                         <br>Files are only compressed, if the response's {@link CompressionPolicy} allows it
+     *
+     * @return The same {@link ServingRoute} instance for chaining
+     */
+    public ServingRoute setCompressionCache(@Nullable CompressedVariantCache compressionCache) {
+        this.compressionCache = compressionCache;
+
+        return this;
+    }
+
+    public boolean isWeakETags() {
+        return this.weakETags;
+    }
+
+    /**
+     * Strong ETags identify the exact bytes sent and are specific to the {@code Content-Encoding},
+     * weak ETags are shared by all encodings of a file
+     *
+     * @param weakETags true, if weak ETags (e.g. {@code W/"1f-17a2b"}) should be sent instead of strong ones
+     *
+     * @return The same {@link ServingRoute} instance for chaining
+     */
+    public ServingRoute setWeakETags(boolean weakETags) {
+        this.weakETags = weakETags;
+
+        return this;
+    }
+
+    public @Nullable String getDefaultCacheControl() {
+        return this.defaultCacheControl;
+    }
+
+    /**
+     * @param cacheControl The {@code Cache-Control} sent for files not matching any path added using
+     *                     {@link #setCacheControl(Pattern, String)} (e.g. {@code no-cache}), {@code null} to send none
+     *
+     * @return The same {@link ServingRoute} instance for chaining
+     */
+    public ServingRoute setDefaultCacheControl(@Nullable String cacheControl) {
+        this.defaultCacheControl = cacheControl;
+
+        return this;
+    }
+
+    /**
+     * Sets the {@code Cache-Control} sent for files whose path (relative to this route) matches the given pattern.
+     * Patterns are checked in the order they have been added.
+     * <br><br>
+     * Example for fingerprinted assets: {@code setCacheControl(Pattern.compile(".*\\.[0-9a-f]{8,}\\.(js|css)"), "public, max-age=31536000, immutable")}
+     *
+     * @param path         Has to match the whole path
+     * @param cacheControl The value of the {@code Cache-Control} header, {@code null} to remove the pattern again
+     *
+     * @return The same {@link ServingRoute} instance for chaining
+     */
+    public ServingRoute setCacheControl(@NotNull Pattern path, @Nullable String cacheControl) {
+        if (cacheControl == null) {
+            this.cacheControls.remove(Objects.requireNonNull(path));
+        } else {
+            this.cacheControls.put(Objects.requireNonNull(path), cacheControl);
+        }
+
+        return this;
+    }
+
     @Override
     public boolean call(@NotNull WebRequest req, @NotNull WebResponse res) {
         Path resolvedPath = Path.of(this.path.toString(), req.getPath()).normalize();
 
         if (resolvedPath.startsWith(this.path)) {
-            File file = resolvedPath.toFile();
+            if (this.cache != null && req.getHeader("Range") == null) {
+                StaticFileCache.Entry entry = this.cache.get(resolvedPath, ServingRoute::resolveFile);
+
+                if (entry != null) {
+                    res.setContentType(entry.getContentType())
+                            .setHeader("Accept-Ranges", "bytes");
 
-            if (file.isDirectory() && new File(file, "index.html").exists()) {
-                file = new File(file, "index.html");
+                    if (!sendNotModified(req, res, entry.getETag(), entry.getLastModified(), entry.getContentType(), entry.getData().length)) {
+                        res.setStatus(HttpStatusCode.OK)
+                                .setBody(entry.getData());
+
+                        sendVariant(req, res, entry.getFile(), entry.getLastModified(), entry.getContentType(), entry.getData().length, entry.getData());
+                    }
+
+                    return true;
+                }
             }
 
-            if (file.exists() && file.isFile()) {
+            File file = resolveFile(resolvedPath);
+
+            if (file != null) {
                 try (FileInputStream fIn = new FileInputStream(file)) {
                     String contentType = URLConnection.guessContentTypeFromName(file.getName());
                     if (contentType == null) {
                         contentType = URLConnection.guessContentTypeFromStream(fIn);
                     }
 
+                    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                    long fileSize = attributes.size();
+                    long lastModified = attributes.lastModifiedTime().toMillis();
+
                     res.setContentType(contentType);
 
-                    String rangeStr = req.getHeader("Range");
-                    if (rangeStr != null &&
-                            rangeStr.indexOf(',') == -1 &&
-                            rangeStr.startsWith("bytes=")) {
-                        String[] s = rangeStr.substring(6).split("-");
-
-                        if (s.length > 2) {
-                            res.send(HttpStatusCode.BAD_REQUEST);
-                        } else {
-                            int fileSize = Math.toIntExact(Files.size(file.toPath()));
-
-                            int fileStart = Integer.parseInt(s[0], 10);
-                            int fileEnd = s.length == 2 ?
-                                    Integer.parseInt(s[1], 10) :
-                                    fileSize;
-
-                            if (fileEnd > fileSize) {
-                                res.send(HttpStatusCode.REQUESTED_RANGE_NOT_SATISFIABLE);
-                            } else {
-                                res.setStatus(HttpStatusCode.PARTIAL_CONTENT)
-                                        .setHeader("Content-Range", "bytes " + fileStart + "-" + fileEnd + "/" + fileSize)
-                                        .setBody(HttpUtils.readByteRange(file, fileStart, fileEnd));
-                            }
-                        }
-                    } else {
+                    if (sendNotModified(req, res, createETag(fileSize, lastModified), lastModified, contentType, fileSize)) {
+                        return true;
+                    }
+
+                    res.setHeader("Accept-Ranges", "bytes");
+
+                    List<HttpRange> ranges = null;
+                    if (isRangeApplicable(req, res.getHeader("ETag"), lastModified)) {
+                        ranges = HttpRange.parse(req.getHeader("Range"), fileSize);
+                    }
+
+                    if (ranges == null) {
                         res.setStatus(HttpStatusCode.OK)
-                                .setBody(Files.readAllBytes(file.toPath()));
+                                .setFile(new FileRegion(file.toPath(), 0, fileSize));
+
+                        sendVariant(req, res, file.toPath(), lastModified, contentType, fileSize, null);
+                    } else if (ranges.isEmpty()) {
+                        res.send(HttpStatusCode.REQUESTED_RANGE_NOT_SATISFIABLE)
+                                .setHeader("Content-Range", "bytes */" + fileSize);
+                    } else if (ranges.size() == 1) {
+                        HttpRange range = ranges.get(0);
+
+                        res.setStatus(HttpStatusCode.PARTIAL_CONTENT)
+                                .setCompressionPolicy(null)
+                                .setHeader("Content-Range", range.toContentRange(fileSize))
+                                .setFile(new FileRegion(file.toPath(), range.getStart(), range.getLength()));
+                    } else {
+                        ByteRangesWriter body = new ByteRangesWriter(file.toPath(), ranges, fileSize, contentType);
+
+                        res.setStatus(HttpStatusCode.PARTIAL_CONTENT)
+                                .setCompressionPolicy(null)
+                                .setContentType(body.getContentType())
+                                .setBody(body, body.getLength());
                     }
                 } catch (IOException ex) {
                     ex.printStackTrace();
@@ -81,4 +211,198 @@ public class ServingRoute implements RouteCallback {
 
         return true;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the validators and {@code Cache-Control} for the file and answers with {@code 304 Not Modified},
+     * if the client's copy is still up-to-date (RFC 7232, section 6)
+     *
+     * @param etag The file's strong ETag (see {@link #createETag(long, long)})
+     *
+     * @return true, if the response has been completed
+     */
+    private boolean sendNotModified(@NotNull WebRequest req, @NotNull WebResponse res, @NotNull String etag, long lastModified,
+                                    @Nullable String contentType, long length) {
+        if (this.weakETags) {
+            etag = "W/" + etag;
+        }
+
+        res.setHeader("ETag", etag)
+                .setHeader("Last-Modified", HttpDate.format(lastModified))
+                .setHeader("Cache-Control", getCacheControl(req.getPath()));
+
+        if (req.getHttpMethod() != HttpMethod.GET && req.getHttpMethod() != HttpMethod.HEAD) {
+            return false;
+        }
+
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        boolean notModified;
+
+        if (ifNoneMatch != null) {
+            String matchedTag = findMatchingETag(ifNoneMatch, etag);
+            notModified = matchedTag != null;
+
+            if (notModified) {
+                // The client's copy might be a compressed variant, which has an ETag of its own
+                res.setHeader("ETag", matchedTag);
+            }
+        } else {
+            long ifModifiedSince = HttpDate.parse(req.getHeader("If-Modified-Since"));
+
+            // HTTP-dates only have a resolution of one second
+            notModified = ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+
+        if (notModified) {
+            CompressionPolicy policy = res.getCompressionPolicy();
+
+            // Has to be sent just like the full response would have
+            if (policy != null && policy.isCompressible(contentType, length)) {
+                res.addVary("Accept-Encoding");
+            }
+
+            res.setStatus(HttpStatusCode.NOT_MODIFIED)
+                    .setBody((byte[]) null)
+                    .setCompressionPolicy(null)
+                    .setContentType(null)
+                    .setHeader("Content-Length", null);
+        }
+
+        return notModified;
+    }
+
+    /**
+     * @param etag The ETag sent for the file
+     *
+     * @return true, if the request's {@code Range} should be applied, as its {@code If-Range} (if any) matches the file
+     */
+    private static boolean isRangeApplicable(@NotNull WebRequest req, @Nullable String etag, long lastModified) {
+        if (req.getHeader("Range") == null) return false;
+        if (req.getHttpMethod() != HttpMethod.GET && req.getHttpMethod() != HttpMethod.HEAD) return false;
+
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) return true;
+
+        ifRange = ifRange.trim();
+
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Strong comparison, a weak ETag never matches
+            return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+
+        long date = HttpDate.parse(ifRange);
+
+        return date != -1 && date / 1000 == lastModified / 1000;
+    }
+
+    private @Nullable String getCacheControl(@NotNull String path) {
+        for (Map.Entry<Pattern, String> entry : this.cacheControls.entrySet()) {
+            if (entry.getKey().matcher(path).matches()) {
+                return entry.getValue();
+            }
+        }
+
+        return this.defaultCacheControl;
+    }
+
+    /**
+     * @return A strong ETag made of the file's size and last modification time (e.g. {@code "1f-17a2b3c4d5e"})
+     */
+    static @NotNull String createETag(long length, long lastModified) {
+        return '"' + Long.toHexString(length) + '-' + Long.toHexString(lastModified) + '"';
+    }
+
+    /**
+     * Uses the weak comparison, so an ETag matches regardless of it being weak or specific to a {@code Content-Encoding}
+     *
+     * @param header The value of {@code If-None-Match}
+     * @param etag   The current ETag of the file
+     *
+     * @return The ETag of the client's copy (e.g. {@code "1f-17a2b-gzip"}) or {@code null} if none matches
+     */
+    private static @Nullable String findMatchingETag(@NotNull String header, @NotNull String etag) {
+        boolean weak = etag.startsWith("W/");
+        String opaqueTag = weak ? etag.substring(2) : etag;
+        String encodedPrefix = opaqueTag.substring(0, opaqueTag.length() - 1) + '-';
+
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+
+            if (tag.equals("*")) return etag;
+
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+
+            if (tag.equals(opaqueTag) || (tag.startsWith(encodedPrefix) && tag.endsWith("\"") &&
+                    isContentCoding(tag.substring(encodedPrefix.length(), tag.length() - 1)))) {
+                return weak ? "W/" + tag : tag;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isContentCoding(@NotNull String s) {
+        return s.equals("gzip") || s.equals("deflate");
+    }
+
+    /**
+     * @return The file that should be served for the given path or {@code null} if there is none
+     */
+    private static @Nullable File resolveFile(@NotNull Path resolvedPath) {
+        File file = resolvedPath.toFile();
+
+        if (file.isDirectory() && new File(file, "index.html").exists()) {
+            file = new File(file, "index.html");
+        }
+
+        return file.exists() && file.isFile() ? file : null;
+    }
+
+    /**
+     * Replaces the body with a compressed variant, if the client accepts one and the content is worth compressing
+     */
+    private void sendVariant(@NotNull WebRequest req, @NotNull WebResponse res, @NotNull Path file, long lastModified,
+                             @Nullable String contentType, long length, @Nullable byte[] data) {
+        CompressionPolicy policy = res.getCompressionPolicy();
+
+        if (policy == null || !policy.isCompressible(contentType, length)) {
+            res.setCompressionPolicy(null);
+            return;
+        }
+
+        // Compressed by the response on every request
+        if (this.compressionCache == null) return;
+
+        res.addVary("Accept-Encoding");
+
+        String encoding = HttpUtils.selectContentEncoding(req.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            res.setCompressionPolicy(null);
+            return;
+        }
+
+        // Files too large to be cached are compressed while being sent
+        CompressedVariantCache.Variant variant = this.compressionCache.get(file, lastModified, encoding, policy.getLevel(contentType), data);
+        if (variant == null) return;
+
+        if (variant.getFile() != null) {
+            try {
+                res.setFile(variant.getFile());
+            } catch (IOException ignore) {
+                // The sibling has been deleted - The uncompressed file is still set and may be compressed by the response
+                this.compressionCache.remove(file, lastModified, encoding);
+                return;
+            }
+        } else if (variant.getData() != null) {
+            res.setBody(variant.getData());
+        }
+
+        // Only now that the variant has been applied, the response must not compress it again
+        res.setCompressionPolicy(null);
+
+        if (!variant.isIdentity()) {
+            res.setContentEncoding(variant.getEncoding());
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package de.sprax2013.hems.webserver_new.routes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.Function;
+
+/**
+ * Keeps the contents of frequently requested files in memory (e.g. for {@link ServingRoute#setCache(StaticFileCache)}).
+ * <br><br>
+ * Entries are evicted in least-recently-used order once the total size exceeds the configured budget.
+ * Files larger than {@link #getMaxEntrySize()} are never cached, as streaming them from disk is cheap anyway.
+ * Cached entries are revalidated using their last modification time and size at most once per
+ * {@link #getRevalidateInterval()}, so a hit does not touch the disk in between.
+ */
+public class StaticFileCache {
+    public static final long DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+    public static final int DEFAULT_REVALIDATE_INTERVAL = 1_000;
+
+    private final LruCache<Path, Entry> entries;
+    private long maxEntrySize;
+    private int revalidateInterval = DEFAULT_REVALIDATE_INTERVAL;
+
+    /**
+     * @param maxSize The maximum number of bytes that should be cached in total
+     */
+    public StaticFileCache(long maxSize) {
+        this.entries = new LruCache<>(maxSize, entry -> entry.data.length);
+        this.maxEntrySize = Math.min(DEFAULT_MAX_ENTRY_SIZE, maxSize);
+    }
+
+    /**
+     * Returns the cached entry for the given path, loading it if necessary.
+     *
+     * @param path     The key to cache the file for (e.g. the path a request resolved to)
+     * @param resolver Returns the file that should be served for {@code path} or {@code null} if there is none
+     *
+     * @return The cached file or {@code null} if there is no file or it can't be cached
+     */
+    public @Nullable Entry get(@NotNull Path path, @NotNull Function<Path, File> resolver) {
+        Entry entry = this.entries.get(path);
+
+        if (entry != null) {
+            long now = System.currentTimeMillis();
+
+            if (now - entry.validatedAt < this.revalidateInterval || entry.isUnchanged()) {
+                entry.validatedAt = now;
+                this.entries.recordHit();
+
+                return entry;
+            }
+
+            this.entries.remove(path, entry);
+        }
+
+        this.entries.recordMiss();
+
+        File file = resolver.apply(path);
+        if (file == null) return null;
+
+        entry = load(file.toPath());
+        if (entry != null) {
+            this.entries.put(path, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    public long getMaxSize() {
+        return this.entries.getMaxSize();
+    }
+
+    public long getMaxEntrySize() {
+        return this.maxEntrySize;
+    }
+
+    /**
+     * @param maxEntrySize The maximum size in bytes a file may have to be cached
+     *
+     * @return The same {@link StaticFileCache} instance for chaining
+     */
+    public StaticFileCache setMaxEntrySize(long maxEntrySize) {
+        if (maxEntrySize <= 0 || maxEntrySize > getMaxSize()) {
+            throw new IllegalArgumentException("maxEntrySize has to be greater than 0 and may not exceed maxSize");
+        }
+
+        this.maxEntrySize = maxEntrySize;
+
+        return this;
+    }
+
+    public int getRevalidateInterval() {
+        return this.revalidateInterval;
+    }
+
+    /**
+     * @param interval The time in milliseconds a cached file is served without checking whether it has been changed
+     *
+     * @return The same {@link StaticFileCache} instance for chaining
+     */
+    public StaticFileCache setRevalidateInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval may not be negative");
+        }
+
+        this.revalidateInterval = interval;
+
+        return this;
+    }
+
+    /**
+     * @return The number of bytes currently cached
+     */
+    public long getSize() {
+        return this.entries.getSize();
+    }
+
+    public int getEntryCount() {
+        return this.entries.getEntryCount();
+    }
+
+    public long getHits() {
+        return this.entries.getHits();
+    }
+
+    public long getMisses() {
+        return this.entries.getMisses();
+    }
+
+    /**
+     * @return The number of entries removed to stay within {@link #getMaxSize()}
+     */
+    public long getEvictions() {
+        return this.entries.getEvictions();
+    }
+
+    private @Nullable Entry load(@NotNull Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+            if (!attributes.isRegularFile() || attributes.size() > this.maxEntrySize) return null;
+
+            byte[] data = Files.readAllBytes(file);
+
+            // The file has been changed while reading it
+            if (data.length != attributes.size()) return null;
+
+            String contentType = URLConnection.guessContentTypeFromName(file.getFileName().toString());
+            if (contentType == null) {
+                contentType = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(data));
+            }
+
+            return new Entry(file, contentType, data, attributes.lastModifiedTime().toMillis());
+        } catch (IOException ignore) {
+            return null;    // Let the caller serve the file without caching it
+        }
+    }
+
+    public static final class Entry {
+        private final Path file;
+        private final String contentType;
+        private final byte[] data;
+        private final long lastModified;
+        private final String etag;
+
+        private volatile long validatedAt = System.currentTimeMillis();
+
+        private Entry(@NotNull Path file, @Nullable String contentType, byte[] data, long lastModified) {
+            this.file = file;
+            this.contentType = contentType;
+            this.data = data;
+            this.lastModified = lastModified;
+            this.etag = ServingRoute.createETag(data.length, lastModified);
+        }
+
+        public @NotNull Path getFile() {
+            return this.file;
+        }
+
+        public @Nullable String getContentType() {
+            return this.contentType;
+        }
+
+        /**
+         * @return The file's contents (shared - must not be modified)
+         */
+        public byte[] getData() {
+            return this.data;
+        }
+
+        /**
+         * @return The file's last modification time in milliseconds since the epoch
+         */
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        /**
+         * @return A strong ETag identifying the cached contents
+         */
+        public @NotNull String getETag() {
+            return this.etag;
+        }
+
+        private boolean isUnchanged() {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(this.file, BasicFileAttributes.class);
+
+                return attributes.lastModifiedTime().toMillis() == this.lastModified &&
+                        attributes.size() == this.data.length;
+            } catch (IOException ignore) {
+                return false;   // File has been deleted or can't be accessed anymore
+            }
+        }
+    }
+}
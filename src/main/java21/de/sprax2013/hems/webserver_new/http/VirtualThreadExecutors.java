@@ -0,0 +1,18 @@
+package de.sprax2013.hems.webserver_new.http;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Only compiled when building with the <em>java21</em> profile and looked up using reflection,
+ * so the rest of the project can still be compiled for and run on Java 11
+ */
+final class VirtualThreadExecutors {
+    private VirtualThreadExecutors() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    static ExecutorService newExecutor(String namePrefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory());
+    }
+}